@@ -0,0 +1,127 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static com.github.jfallows.iperf4j.IperfState.CREATE_STREAMS;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IperfControlBM
+{
+    private static final String PARAMS =
+        "{\"tcp\":true,\"omit\":0,\"time\":10,\"parallel\":4,\"len\":131072,\"pacing_timer\":1000," +
+        "\"client_version\":\"3.6\"}";
+
+    private ServerSocketChannel server;
+    private IperfWorker acceptor;
+    private IperfBufferPool buffers;
+    private ByteBuffer params;
+    private ByteBuffer reply;
+
+    private SocketChannel client;
+    private IperfTest test;
+    private IperfControl control;
+
+    @Setup(Level.Trial)
+    public void init() throws IOException
+    {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        acceptor = new IperfWorker();
+        buffers = new IperfBufferPool(0L);
+
+        final byte[] paramsUTF8 = PARAMS.getBytes(UTF_8);
+        params = ByteBuffer.allocateDirect(Integer.BYTES + paramsUTF8.length);
+        params.putInt(paramsUTF8.length).put(paramsUTF8).flip();
+        reply = ByteBuffer.allocateDirect(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException
+    {
+        acceptor.close();
+        server.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void connect() throws IOException
+    {
+        // connection setup and the initial PARAM_EXCHANGE state are excluded from the measurement
+        client = SocketChannel.open(server.getLocalAddress());
+        final SocketChannel child = server.accept();
+        child.configureBlocking(false);
+
+        test = new IperfTest();
+        control = new IperfControl(acceptor, buffers, test, child);
+        final SelectionKey key = acceptor.register(child, OP_READ, control::onReadyOps);
+        control.start(key);
+
+        reply.clear();
+        client.read(reply);
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() throws IOException
+    {
+        control.close();
+        client.close();
+        acceptor.process(1L);
+    }
+
+    @Benchmark
+    public IperfState exchange() throws IOException
+    {
+        client.write(params.duplicate());
+
+        while (test.state != CREATE_STREAMS)
+        {
+            acceptor.process(0L);
+        }
+
+        reply.clear();
+        client.read(reply);
+
+        return test.state;
+    }
+}
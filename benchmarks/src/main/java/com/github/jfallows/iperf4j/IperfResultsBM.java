@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IperfResultsBM
+{
+    @Param({ "1", "8", "32", "128" })
+    public int streams;
+
+    @Param({ "0", "10" })
+    public int intervals;
+
+    private Gson gson;
+    private IperfTestInfo info;
+
+    @Setup(Level.Trial)
+    public void init()
+    {
+        gson = IperfUtil.newGson();
+        info = new IperfTestInfo();
+
+        for (int i = 0; i < streams; i++)
+        {
+            final IperfTestStreamInfo stream = new IperfTestStreamInfo();
+            stream.id = i == 0 ? 1 : i + 2;
+            stream.bytes = 1_250_000_000L;
+            stream.blocks = stream.bytes / 131072L;
+
+            if (intervals != 0)
+            {
+                final long intervalNanos = TimeUnit.SECONDS.toNanos(1L);
+                stream.intervals = new IperfIntervals(intervals, false);
+                for (int j = 0; j < intervals; j++)
+                {
+                    stream.intervals.record(j * intervalNanos, (j + 1) * intervalNanos, stream.bytes / intervals,
+                            0L, 0L, 0.0, 0L, 0L, 0L, false);
+                }
+            }
+
+            info.streams.add(stream);
+        }
+    }
+
+    @Benchmark
+    public String encode()
+    {
+        return gson.toJson(info);
+    }
+}
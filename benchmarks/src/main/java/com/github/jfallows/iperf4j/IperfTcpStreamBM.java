@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IperfTcpStreamBM
+{
+    @Param({ "8192", "32768", "131072" })
+    public int length;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel accepted;
+    private IperfWorker worker;
+    private IperfTestStreamInfo received;
+    private IperfTcpStream sender;
+    private IperfTcpStream receiver;
+
+    private Pipe pipe;
+    private ByteBuffer pipeBuffer;
+
+    @Setup(Level.Trial)
+    public void init() throws IOException
+    {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open(server.getLocalAddress());
+        accepted = server.accept();
+        client.configureBlocking(false);
+        accepted.configureBlocking(false);
+
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(length);
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(length).asReadOnlyBuffer();
+
+        worker = new IperfWorker();
+        received = new IperfTestStreamInfo();
+        final IperfTestStreamInfo sent = new IperfTestStreamInfo();
+        sent.sender = true;
+        sender = new IperfTcpStream(worker, sent, client, readBuffer, writeBuffer);
+        receiver = new IperfTcpStream(worker, received, accepted, readBuffer, writeBuffer);
+        sender.register();
+        receiver.register();
+
+        pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(false);
+        pipeBuffer = ByteBuffer.allocateDirect(length);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException
+    {
+        sender.close();
+        receiver.close();
+        worker.close();
+        server.close();
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer
+    {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            bytes = 0L;
+        }
+    }
+
+    @Benchmark
+    public void stream(
+        Transfer transfer) throws IOException
+    {
+        final long before = received.bytes;
+        worker.process(1L);
+        transfer.bytes += received.bytes - before;
+    }
+
+    @Benchmark
+    public void pipe(
+        Transfer transfer) throws IOException
+    {
+        // raw channel baseline without selector dispatch or stream accounting
+        final ByteBuffer buffer = pipeBuffer;
+        buffer.clear();
+        pipe.sink().write(buffer);
+        buffer.clear();
+        transfer.bytes += Math.max(pipe.source().read(buffer), 0);
+    }
+}
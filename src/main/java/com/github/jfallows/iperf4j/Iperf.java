@@ -15,23 +15,272 @@
  */
 package com.github.jfallows.iperf4j;
 
+import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 public final class Iperf
 {
     public static void main(
         String[] args) throws Exception
     {
-        InetSocketAddress local = new InetSocketAddress(5201);
+        final Options options = newOptions();
+        final CommandLineParser parser = new DefaultParser();
+        final CommandLine cmdline;
+        try
+        {
+            cmdline = parser.parse(options, args);
+        }
+        catch (ParseException ex)
+        {
+            System.err.println(ex.getMessage());
+            new HelpFormatter().printHelp("iperf4j", options);
+            return;
+        }
+
+        if (cmdline.hasOption("help"))
+        {
+            new HelpFormatter().printHelp("iperf4j", options);
+            return;
+        }
+
+        final IperfConfiguration config = new IperfConfiguration();
+        config.workers = Integer.parseInt(cmdline.getOptionValue("workers", "0"));
+        config.maxTests = Integer.parseInt(cmdline.getOptionValue("max-tests", "0"));
+        if (cmdline.hasOption("file"))
+        {
+            config.file = Paths.get(cmdline.getOptionValue("file"));
+        }
+        config.maxRate = parseRate(cmdline.getOptionValue("max-bitrate", "0"));
+        config.engine = IperfEngine.valueOf(cmdline.getOptionValue("engine", "selector").toUpperCase());
+        config.splitDirections = cmdline.hasOption("split-directions");
+        config.batch = Integer.parseInt(cmdline.getOptionValue("batch", "1"));
+        config.budget = parseSize(cmdline.getOptionValue("budget", "256K"));
+        config.backlog = Integer.parseInt(cmdline.getOptionValue("backlog", "0"));
+        config.acceptors = Integer.parseInt(cmdline.getOptionValue("acceptors", "1"));
+        config.bufferPoolCapacity = parseSize(cmdline.getOptionValue("buffer-pool", "0"));
+        config.intervalNanos = (long) (Double.parseDouble(cmdline.getOptionValue("interval", "1")) * SECONDS.toNanos(1L));
+
+        if (cmdline.hasOption("results-log"))
+        {
+            config.resultsLog = Paths.get(cmdline.getOptionValue("results-log"));
+        }
+        config.resultsSegmentSize = parseSize(cmdline.getOptionValue("results-segment", "64M"));
+
+        if (cmdline.hasOption("export"))
+        {
+            final IperfResultsExporter exporter = new IperfResultsExporter(Paths.get(cmdline.getOptionValue("export")));
+            if ("csv".equals(cmdline.getOptionValue("format", "json")))
+            {
+                exporter.exportCsv(System.out);
+            }
+            else
+            {
+                exporter.exportJson(System.out);
+            }
+        }
+        else if (cmdline.hasOption("client"))
+        {
+            runClient(cmdline, config);
+        }
+        else
+        {
+            runServer(cmdline, config);
+        }
+    }
+
+    private static Options newOptions()
+    {
+        final Options options = new Options();
+        options.addOption(Option.builder("h").longOpt("help").desc("print this message").build());
+        options.addOption(Option.builder("c").longOpt("client").hasArg().argName("host")
+                .desc("run as a client, connecting to the server on host").build());
+        options.addOption(Option.builder("p").longOpt("port").hasArg().argName("port")
+                .desc("server port to listen on or connect to (default 5201)").build());
+        options.addOption(Option.builder("t").longOpt("time").hasArg().argName("seconds")
+                .desc("client test duration in seconds (default 10)").build());
+        options.addOption(Option.builder("P").longOpt("parallel").hasArg().argName("n")
+                .desc("client parallel streams (default 1)").build());
+        options.addOption(Option.builder("R").longOpt("reverse").desc("client receives, server sends").build());
+        options.addOption(Option.builder().longOpt("bidir").desc("client and server both send and receive").build());
+        options.addOption(Option.builder().longOpt("rr")
+                .desc("client sends request/response transactions, one outstanding per stream, and reports latency").build());
+        options.addOption(Option.builder().longOpt("crr")
+                .desc("client opens a new connection per transaction, one at a time per stream").build());
+        options.addOption(Option.builder("l").longOpt("length").hasArg().argName("n[KMG]")
+                .desc("client block length in bytes (default 128K)").build());
+        options.addOption(Option.builder("b").longOpt("bitrate").hasArg().argName("n[KMG]")
+                .desc("client send rate per stream in bits/sec (default 0, unlimited)").build());
+        options.addOption(Option.builder().longOpt("verify")
+                .desc("client sends a seeded pattern, and the receiver checks every block with CRC32C").build());
+        options.addOption(Option.builder().longOpt("workers").hasArg().argName("n")
+                .desc("number of stream I/O worker threads (default 0, streams share the accept thread)").build());
+        options.addOption(Option.builder().longOpt("max-tests").hasArg().argName("n")
+                .desc("maximum number of concurrent tests (default 0, unlimited)").build());
+        options.addOption(Option.builder("i").longOpt("interval").hasArg().argName("seconds")
+                .desc("seconds between periodic throughput reports (default 1, 0 disables)").build());
+        options.addOption(Option.builder().longOpt("max-bitrate").hasArg().argName("n[KMG]")
+                .desc("pace the total send rate of each test in bits/sec, shared by its senders (default 0, unlimited)").build());
+        options.addOption(Option.builder("F").longOpt("file").hasArg().argName("path")
+                .desc("send from (reverse) or receive into (forward) a file instead of memory").build());
+        options.addOption(Option.builder().longOpt("metrics-port").hasArg().argName("port")
+                .desc("serve Prometheus metrics over HTTP at /metrics on this port (default none)").build());
+        options.addOption(Option.builder().longOpt("engine").hasArg().argName("selector|threads")
+                .desc("stream I/O on selector workers, or on a thread per stream, virtual on Java 21 and later " +
+                      "and platform before, as logged at startup (default selector)").build());
+        options.addOption(Option.builder().longOpt("split-directions")
+                .desc("service sending and receiving streams on separate halves of the workers").build());
+        options.addOption(Option.builder().longOpt("batch").hasArg().argName("n")
+                .desc("read and write up to n TCP blocks per system call with vectored I/O (default 1)").build());
+        options.addOption(Option.builder().longOpt("budget").hasArg().argName("n[KMG]")
+                .desc("bytes each stream may read per selector pass before yielding to the others (default 256K)").build());
+        options.addOption(Option.builder().longOpt("backlog").hasArg().argName("n")
+                .desc("listen backlog for pending connections").build());
+        options.addOption(Option.builder().longOpt("unix").hasArg().argName("path")
+                .desc("listen on or connect to a unix domain socket instead of a port").build());
+        options.addOption(Option.builder().longOpt("acceptors").hasArg().argName("n")
+                .desc("listeners sharing the port with SO_REUSEPORT, each on its own thread").build());
+        options.addOption(Option.builder().longOpt("results-log").hasArg().argName("dir")
+                .desc("append the results of every test to a binary log in this directory").build());
+        options.addOption(Option.builder().longOpt("results-segment").hasArg().argName("n[KMG]")
+                .desc("size of each results log segment (default 64M)").build());
+        options.addOption(Option.builder().longOpt("export").hasArg().argName("dir")
+                .desc("print the tests in a results log directory, then exit").build());
+        options.addOption(Option.builder().longOpt("format").hasArg().argName("json|csv")
+                .desc("export format, one JSON test per line or CSV rows per stream (default json)").build());
+        options.addOption(Option.builder().longOpt("buffer-pool").hasArg().argName("n[KMG]")
+                .desc("maximum bytes of pooled direct buffers, heap buffers beyond (default 0, unlimited)").build());
+        return options;
+    }
+
+    private static void runServer(
+        CommandLine cmdline,
+        IperfConfiguration config) throws IOException
+    {
+        SocketAddress local = new InetSocketAddress(Integer.parseInt(cmdline.getOptionValue("port", "5201")));
+        if (cmdline.hasOption("unix"))
+        {
+            final Path path = Paths.get(cmdline.getOptionValue("unix"));
+            final boolean stale = Files.exists(path, NOFOLLOW_LINKS) &&
+                    Files.readAttributes(path, BasicFileAttributes.class, NOFOLLOW_LINKS).isOther();
+            if (stale)
+            {
+                // socket left behind by a server that was killed before it could close
+                Files.delete(path);
+            }
+            local = UnixDomainSocketAddress.of(path);
+        }
 
-        try (IperfServer server = new IperfServer())
+        try (IperfServer server = new IperfServer(config))
         {
             server.bind(local);
 
+            if (config.engine == IperfEngine.THREADS)
+            {
+                System.out.format("Stream threads: %s\n", server.streamThreadKind());
+            }
+
+            if (cmdline.hasOption("metrics-port"))
+            {
+                server.metrics().bind(new InetSocketAddress(Integer.parseInt(cmdline.getOptionValue("metrics-port"))));
+            }
+
             while (server.isOpen())
             {
                 server.process();
             }
         }
     }
+
+    private static void runClient(
+        CommandLine cmdline,
+        IperfConfiguration config) throws IOException
+    {
+        final int port = Integer.parseInt(cmdline.getOptionValue("port", "5201"));
+        final SocketAddress remote = cmdline.hasOption("unix")
+                ? UnixDomainSocketAddress.of(cmdline.getOptionValue("unix"))
+                : new InetSocketAddress(cmdline.getOptionValue("client"), port);
+
+        final IperfTest test = new IperfTest();
+        test.protocol = "tcp";
+        test.mode = cmdline.hasOption("crr") ? IperfMode.CONNECTION_RATE
+                : cmdline.hasOption("rr") ? IperfMode.REQUEST_RESPONSE
+                : cmdline.hasOption("bidir") ? IperfMode.BIDIRECTIONAL
+                : cmdline.hasOption("reverse") ? IperfMode.REVERSE : IperfMode.FORWARD;
+        test.streams = Integer.parseInt(cmdline.getOptionValue("parallel", "1"));
+        test.duration = Integer.parseInt(cmdline.getOptionValue("time", "10"));
+        final boolean transactions = test.mode == IperfMode.REQUEST_RESPONSE || test.mode == IperfMode.CONNECTION_RATE;
+        test.length = (int) parseSize(cmdline.getOptionValue("length", transactions ? "1" : "128K"));
+        test.rate = parseRate(cmdline.getOptionValue("bitrate", "0"));
+        test.verify = cmdline.hasOption("verify");
+
+        try (IperfClient client = new IperfClient(config, test))
+        {
+            client.connect(remote);
+
+            while (!client.isDone())
+            {
+                client.process();
+            }
+
+            if (client.state() != IperfState.IPERF_DONE)
+            {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static long parseRate(
+        String value)
+    {
+        return parseUnits(value, 1000L);
+    }
+
+    private static long parseSize(
+        String value)
+    {
+        return parseUnits(value, 1024L);
+    }
+
+    private static long parseUnits(
+        String value,
+        long base)
+    {
+        final char suffix = Character.toUpperCase(value.charAt(value.length() - 1));
+        long multiplier = 1L;
+
+        switch (suffix)
+        {
+        case 'K':
+            multiplier = base;
+            break;
+        case 'M':
+            multiplier = base * base;
+            break;
+        case 'G':
+            multiplier = base * base * base;
+            break;
+        default:
+            break;
+        }
+
+        final String number = multiplier != 1L ? value.substring(0, value.length() - 1) : value;
+        return (long) (Double.parseDouble(number) * multiplier);
+    }
 }
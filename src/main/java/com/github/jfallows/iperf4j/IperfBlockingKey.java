@@ -0,0 +1,85 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Selection key for a channel in blocking mode, reporting every interest operation as ready so that
+ * handlers written for a selector perform blocking reads and writes instead.
+ */
+final class IperfBlockingKey extends SelectionKey
+{
+    private final SelectableChannel channel;
+
+    private volatile boolean valid;
+    private int interestOps;
+
+    IperfBlockingKey(
+        SelectableChannel channel,
+        int interestOps)
+    {
+        this.channel = channel;
+        this.interestOps = interestOps;
+        this.valid = true;
+    }
+
+    @Override
+    public SelectableChannel channel()
+    {
+        return channel;
+    }
+
+    @Override
+    public Selector selector()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean isValid()
+    {
+        return valid && channel.isOpen();
+    }
+
+    @Override
+    public void cancel()
+    {
+        valid = false;
+    }
+
+    @Override
+    public int interestOps()
+    {
+        return interestOps;
+    }
+
+    @Override
+    public SelectionKey interestOps(
+        int ops)
+    {
+        this.interestOps = ops;
+        return this;
+    }
+
+    @Override
+    public int readyOps()
+    {
+        return isValid() ? interestOps : 0;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Size-classed pool of direct buffers shared by the tests of one server.
+ * <p>
+ * Buffers are borrowed on the control path as tests and streams are created, and returned there or on
+ * the worker closing the stream, so each call takes the pool lock once and never holds it across I/O.
+ * Each borrowed buffer is a zeroed slice with exactly the requested capacity, backed by a pooled buffer
+ * rounded up to the next power of two. When a new direct buffer would exceed the capacity, or the size
+ * exceeds the largest class, a heap buffer is returned instead and counted as an overflow, with its bytes
+ * tracked until released so that overflow beyond the pool is visible rather than silent.
+ */
+public final class IperfBufferPool
+{
+    private static final int MIN_SIZE_SHIFT = 12;
+    private static final int MAX_SIZE_SHIFT = 25;
+
+    private final long capacity;
+    private final Deque<ByteBuffer>[] idle;
+    private final Map<ByteBuffer, ByteBuffer> borrowed;
+
+    private long allocatedBytes;
+    private long borrowedBytes;
+    private long acquires;
+    private long releases;
+    private long overflows;
+    private long overflowBytes;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IperfBufferPool(
+        long capacity)
+    {
+        this.capacity = capacity;
+        this.idle = new Deque[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < idle.length; i++)
+        {
+            idle[i] = new ArrayDeque<>();
+        }
+        this.borrowed = new IdentityHashMap<>();
+    }
+
+    public synchronized ByteBuffer acquire(
+        int size)
+    {
+        final int sizeShift = Math.max(Integer.SIZE - Integer.numberOfLeadingZeros(size - 1), MIN_SIZE_SHIFT);
+        final int sizeClass = sizeShift - MIN_SIZE_SHIFT;
+        final int classSize = 1 << sizeShift;
+
+        ByteBuffer pooled = null;
+
+        if (sizeShift <= MAX_SIZE_SHIFT)
+        {
+            pooled = idle[sizeClass].pollFirst();
+
+            if (pooled != null)
+            {
+                doZero(pooled);
+            }
+            else if (capacity == 0L || allocatedBytes + classSize <= capacity)
+            {
+                pooled = ByteBuffer.allocateDirect(classSize);
+                allocatedBytes += classSize;
+            }
+        }
+
+        ByteBuffer buffer;
+
+        if (pooled != null)
+        {
+            pooled.clear().limit(size);
+            buffer = pooled.slice();
+            borrowed.put(buffer, pooled);
+            borrowedBytes += classSize;
+        }
+        else
+        {
+            buffer = ByteBuffer.allocate(size);
+            overflowBytes += size;
+            overflows++;
+        }
+
+        acquires++;
+
+        return buffer;
+    }
+
+    public synchronized void release(
+        ByteBuffer buffer)
+    {
+        if (buffer != null)
+        {
+            final ByteBuffer pooled = borrowed.remove(buffer);
+
+            if (pooled != null)
+            {
+                final int sizeShift = Integer.numberOfTrailingZeros(pooled.capacity());
+                idle[sizeShift - MIN_SIZE_SHIFT].offerFirst(pooled);
+                borrowedBytes -= pooled.capacity();
+            }
+            else if (!buffer.isDirect())
+            {
+                overflowBytes -= buffer.capacity();
+            }
+
+            releases++;
+        }
+    }
+
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    public synchronized long allocatedBytes()
+    {
+        return allocatedBytes;
+    }
+
+    public synchronized long borrowedBytes()
+    {
+        return borrowedBytes;
+    }
+
+    public synchronized long acquires()
+    {
+        return acquires;
+    }
+
+    public synchronized long releases()
+    {
+        return releases;
+    }
+
+    public synchronized long overflows()
+    {
+        return overflows;
+    }
+
+    public synchronized long overflowBytes()
+    {
+        return overflowBytes;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("buffers: %s allocated, %s borrowed, %s idle, %d acquires, %d releases, " +
+                "%d overflows, %s overflow borrowed",
+                IperfUtil.formatBytes(allocatedBytes), IperfUtil.formatBytes(borrowedBytes),
+                IperfUtil.formatBytes(allocatedBytes - borrowedBytes), acquires, releases, overflows,
+                IperfUtil.formatBytes(overflowBytes));
+    }
+
+    private static void doZero(
+        ByteBuffer buffer)
+    {
+        // pooled buffers may hold another test's payload
+        buffer.clear();
+        while (buffer.remaining() >= Long.BYTES)
+        {
+            buffer.putLong(0L);
+        }
+        while (buffer.hasRemaining())
+        {
+            buffer.put((byte) 0);
+        }
+    }
+}
@@ -0,0 +1,880 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static com.github.jfallows.iperf4j.IperfMode.BIDIRECTIONAL;
+import static com.github.jfallows.iperf4j.IperfMode.CONNECTION_RATE;
+import static com.github.jfallows.iperf4j.IperfMode.FORWARD;
+import static com.github.jfallows.iperf4j.IperfMode.REQUEST_RESPONSE;
+import static com.github.jfallows.iperf4j.IperfMode.REVERSE;
+import static com.github.jfallows.iperf4j.IperfState.CLIENT_TERMINATE;
+import static com.github.jfallows.iperf4j.IperfState.DISPLAY_RESULTS;
+import static com.github.jfallows.iperf4j.IperfState.EXCHANGE_RESULTS;
+import static com.github.jfallows.iperf4j.IperfState.IPERF_DONE;
+import static com.github.jfallows.iperf4j.IperfState.IPERF_START;
+import static com.github.jfallows.iperf4j.IperfState.SERVER_TERMINATE;
+import static com.github.jfallows.iperf4j.IperfState.TEST_END;
+import static com.github.jfallows.iperf4j.IperfState.TEST_RUNNING;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Drives a test against an iperf3 compatible server, mirroring the server side of {@link IperfControl}
+ * over the same workers, timers and streams.
+ */
+public final class IperfClient implements AutoCloseable
+{
+    private static final int CONTROL_BUFFER_SIZE = 32768;
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_BATCH_SIZE = 1024 * 1024;
+    private static final int DEFAULT_INTERVALS = 256;
+    private static final int MAX_INTERVALS = 4096;
+    private static final long DEFAULT_PACING_TIMER = 1000L; // microseconds
+    private static final long MIN_PACING_BURST = MILLISECONDS.toNanos(4L);
+
+    private final IperfWorker control;
+    private final IperfWorker[] workers;
+    private final Thread[] threads;
+    private final IperfBufferPool buffers;
+    private final IperfTest test;
+    private final Set<IperfStream> streams;
+    private final List<IperfConnector> connectors;
+    private final AtomicInteger quiescing;
+    private final IperfTimer endTimer;
+    private final IperfTimer reportTimer;
+    private final IperfReport report;
+
+    private SocketAddress remote;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
+    private ByteBuffer readBuffer;
+    private ByteBuffer writeBuffer;
+    private IperfCpuUsage cpuStart;
+    private IperfCpuUsage cpuEnd;
+    private JsonObject serverResults;
+    private long reportDeadline;
+    private long endNanos;
+    private boolean quiesced;
+    private boolean resultsRequested;
+    private int nextWorker;
+
+    public IperfClient(
+        IperfConfiguration config,
+        IperfTest test) throws IOException
+    {
+        this.buffers = new IperfBufferPool(config.bufferPoolCapacity);
+        this.test = test;
+        this.test.cookie = newCookie();
+        this.test.intervalNanos = config.intervalNanos;
+        this.test.batch = config.batch;
+        this.test.budget = config.budget;
+        this.streams = new LinkedHashSet<>();
+        this.connectors = new ArrayList<>();
+        this.quiescing = new AtomicInteger();
+        this.endTimer = new IperfTimer(this::onTestLimit);
+        this.reportTimer = new IperfTimer(this::onReportTimer);
+        this.report = new IperfReport();
+        this.control = new IperfWorker();
+        this.workers = new IperfWorker[config.workers];
+        this.threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i] = new IperfWorker();
+            threads[i] = new Thread(workers[i], String.format("iperf4j-client-%d", i));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    public void connect(
+        SocketAddress remote) throws IOException
+    {
+        this.remote = remote;
+        this.channel = doConnect();
+        this.inputBuffer = buffers.acquire(CONTROL_BUFFER_SIZE);
+        this.outputBuffer = buffers.acquire(CONTROL_BUFFER_SIZE);
+        this.key = control.register(channel, OP_READ, this::onReadyOps);
+    }
+
+    public boolean isDone()
+    {
+        final IperfState state = test.state;
+        return state == IPERF_DONE || state == CLIENT_TERMINATE || state == SERVER_TERMINATE || state.value() < 0;
+    }
+
+    public IperfState state()
+    {
+        return test.state;
+    }
+
+    public void process() throws IOException
+    {
+        control.process(0L);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        control.timers().cancel(endTimer);
+        control.timers().cancel(reportTimer);
+        streams.forEach(IperfStream::close);
+        connectors.forEach(IperfConnector::close);
+
+        if (channel != null)
+        {
+            channel.close();
+        }
+
+        control.close();
+        for (IperfWorker worker : workers)
+        {
+            worker.close();
+        }
+
+        for (Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        buffers.release(inputBuffer);
+        buffers.release(outputBuffer);
+        buffers.release(readBuffer);
+        buffers.release(writeBuffer);
+        inputBuffer = null;
+        outputBuffer = null;
+        readBuffer = null;
+        writeBuffer = null;
+    }
+
+    private void onReadyOps(
+        SelectionKey key)
+    {
+        final int readyOps = key.readyOps();
+
+        if ((readyOps & OP_WRITE) != 0)
+        {
+            doFlush();
+        }
+
+        if ((readyOps & OP_READ) != 0)
+        {
+            doRead();
+        }
+    }
+
+    private void doRead()
+    {
+        try
+        {
+            if (channel.read(inputBuffer) == -1)
+            {
+                doTerminate();
+            }
+            else
+            {
+                inputBuffer.flip();
+                doDecode();
+                inputBuffer.compact();
+            }
+        }
+        catch (IOException ex)
+        {
+            doTerminate();
+        }
+    }
+
+    private void doDecode()
+    {
+        boolean decoded = true;
+
+        while (decoded && !isDone())
+        {
+            if (test.state == EXCHANGE_RESULTS && resultsRequested && serverResults == null)
+            {
+                final String results = doDecodeJson();
+                decoded = results != null;
+                if (decoded)
+                {
+                    serverResults = (JsonObject) new JsonParser().parse(results);
+                }
+            }
+            else
+            {
+                decoded = inputBuffer.hasRemaining();
+                if (decoded)
+                {
+                    doDecodeState();
+                }
+            }
+        }
+    }
+
+    private void doDecodeState()
+    {
+        final IperfState state = IperfState.valueOf(inputBuffer.get());
+
+        if (state == null)
+        {
+            doTerminate();
+        }
+        else if (state != TEST_END || test.state != TEST_END) // ignore when already ended by the client
+        {
+            test.state = state;
+            onStateChange();
+        }
+    }
+
+    private void onStateChange()
+    {
+        switch (test.state)
+        {
+        case PARAM_EXCHANGE:
+            doSendParams();
+            break;
+        case CREATE_STREAMS:
+            if (test.mode == CONNECTION_RATE)
+            {
+                doCreateConnectors();
+            }
+            else
+            {
+                doCreateStreams();
+            }
+            break;
+        case TEST_START:
+            cpuStart = IperfCpuUsage.sample(doThreadIds());
+            break;
+        case TEST_RUNNING:
+            doStartStreams();
+            break;
+        case TEST_END:
+            // ended by the server, when it reached a limit
+            doQuiesceStreams();
+            break;
+        case EXCHANGE_RESULTS:
+            resultsRequested = true;
+            if (quiesced)
+            {
+                doSendResults();
+            }
+            break;
+        case DISPLAY_RESULTS:
+            doPrintSummary();
+            doSend(IPERF_DONE);
+            test.state = IPERF_DONE;
+            break;
+        case SERVER_TERMINATE:
+        case ACCESS_DENIED:
+        case SERVER_ERROR:
+            System.err.format("iperf4j: server ended the test with %s\n", test.state);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void doSendParams()
+    {
+        final boolean udp = "udp".equals(test.protocol);
+        final JsonObject params = new JsonObject();
+        params.addProperty(udp ? "udp" : "tcp", true);
+        params.addProperty("omit", test.omit);
+        params.addProperty("time", test.duration);
+        params.addProperty("parallel", test.streams);
+        if (test.mode == REVERSE)
+        {
+            params.addProperty("reverse", true);
+        }
+        else if (test.mode == BIDIRECTIONAL)
+        {
+            params.addProperty("bidirectional", true);
+        }
+        else if (test.mode == REQUEST_RESPONSE)
+        {
+            params.addProperty("request_response", true);
+        }
+        else if (test.mode == CONNECTION_RATE)
+        {
+            params.addProperty("connection_rate", true);
+        }
+        params.addProperty("len", test.length);
+        if (test.verify)
+        {
+            test.verifySeed = ThreadLocalRandom.current().nextLong();
+            params.addProperty("verify_seed", test.verifySeed);
+        }
+        if (test.rate != 0L)
+        {
+            params.addProperty("bandwidth", test.rate);
+        }
+        params.addProperty("pacing_timer", DEFAULT_PACING_TIMER);
+        params.addProperty("client_version", "iperf4j");
+
+        doSendJson(params.toString());
+    }
+
+    private void doCreateConnectors()
+    {
+        // each transaction brings its own connection, made once the test is running
+        for (int i = 0; i < test.streams; i++)
+        {
+            connectors.add(new IperfConnector(nextWorker(), remote, test.cookie, test.length));
+        }
+    }
+
+    private void doCreateStreams()
+    {
+        try
+        {
+            // shared by all streams, payload is discarded unless verified
+            final int batch = Math.max(Math.min(test.batch, MAX_BATCH_SIZE / test.length), 1);
+            readBuffer = test.mode != REQUEST_RESPONSE ? buffers.acquire(test.length * batch) : null;
+            writeBuffer = test.mode != REQUEST_RESPONSE ? buffers.acquire(test.length * batch) : null;
+            if (test.verify && writeBuffer != null)
+            {
+                IperfVerifier.fill(writeBuffer, test.length, test.verifySeed);
+            }
+
+            // bidirectional tests connect their sending streams first, then as many receiving streams
+            final int count = test.mode == BIDIRECTIONAL ? test.streams << 1 : test.streams;
+            for (int i = 0; i < count; i++)
+            {
+                final IperfTestStreamInfo info = new IperfTestStreamInfo();
+                info.id = streams.isEmpty() ? 1 : streams.size() + 2;
+                info.sender = test.mode == FORWARD || test.mode == REQUEST_RESPONSE ||
+                        test.mode == BIDIRECTIONAL && i < test.streams;
+
+                final IperfWorker worker = nextWorker();
+                final SocketChannel child = doConnect();
+                final IperfStream stream = newStream(worker, info, child);
+                stream.budget = test.budget;
+                if (test.rate != 0L)
+                {
+                    stream.pacer = new IperfPacer(test.rate, Math.max(MICROSECONDS.toNanos(DEFAULT_PACING_TIMER),
+                            MIN_PACING_BURST));
+                }
+
+                streams.add(stream);
+                test.info.streams.add(info);
+            }
+        }
+        catch (IOException ex)
+        {
+            System.err.format("iperf4j: unable to create streams: %s\n", ex.getMessage());
+            doTerminate();
+        }
+    }
+
+    private IperfStream newStream(
+        IperfWorker worker,
+        IperfTestStreamInfo info,
+        SocketChannel child)
+    {
+        IperfStream stream;
+
+        if (test.mode == REQUEST_RESPONSE)
+        {
+            // the client sends each request, so its streams are the senders
+            stream = new IperfRrStream(worker, info, child, buffers, test.length);
+        }
+        else
+        {
+            final IperfVerifier verifier = test.verify && !info.sender
+                    ? new IperfVerifier(info, test.length, test.verifySeed) : null;
+            stream = new IperfTcpStream(worker, info, child, buffers, readBuffer, writeBuffer.asReadOnlyBuffer(),
+                    test.length, null, null, verifier);
+        }
+
+        return stream;
+    }
+
+    private void doStartStreams()
+    {
+        final IperfTimerWheel timers = control.timers();
+        final long now = System.nanoTime();
+        test.startNanos = now;
+
+        if (test.duration > 0)
+        {
+            timers.schedule(endTimer, now + SECONDS.toNanos(test.omit + test.duration));
+        }
+
+        final long intervalNanos = test.intervalNanos;
+        if (intervalNanos > 0L)
+        {
+            final int capacity = test.duration > 0
+                    ? (int) Math.min(SECONDS.toNanos(test.omit + test.duration) / intervalNanos + 2, MAX_INTERVALS)
+                    : DEFAULT_INTERVALS;
+
+            for (IperfStream stream : streams)
+            {
+                stream.info.intervals = new IperfIntervals(capacity, false);
+            }
+
+            // report just after the streams snapshot each interval
+            reportDeadline = now + intervalNanos + MILLISECONDS.toNanos(1L);
+            timers.schedule(reportTimer, reportDeadline);
+        }
+
+        for (IperfStream stream : streams)
+        {
+            stream.worker.execute(stream::register);
+            stream.start(now, intervalNanos, test.omit > 0);
+        }
+
+        connectors.forEach(c -> c.start(now, test.omit));
+    }
+
+    private void onReportTimer()
+    {
+        if (test.state == TEST_RUNNING)
+        {
+            report.printIntervals(streams);
+
+            reportDeadline += test.intervalNanos;
+            control.timers().schedule(reportTimer, reportDeadline);
+        }
+    }
+
+    private void onTestLimit()
+    {
+        if (test.state == TEST_RUNNING)
+        {
+            test.state = TEST_END;
+            doQuiesceStreams();
+        }
+    }
+
+    private void doQuiesceStreams()
+    {
+        // streams may be serviced by other workers, so counters are
+        // only read for results after every stream has stopped
+        endNanos = System.nanoTime();
+
+        if (cpuStart != null)
+        {
+            cpuEnd = IperfCpuUsage.sample(doThreadIds());
+        }
+
+        quiescing.set(streams.size() + connectors.size() + 1);
+        streams.forEach(s -> s.quiesce(false, this::onStreamQuiesced));
+        connectors.forEach(c -> c.stop(this::onStreamQuiesced));
+        onStreamQuiesced();
+    }
+
+    private void onStreamQuiesced()
+    {
+        if (quiescing.decrementAndGet() == 0)
+        {
+            control.execute(this::onStreamsQuiesced);
+        }
+    }
+
+    private void onStreamsQuiesced()
+    {
+        quiesced = true;
+
+        if (test.intervalNanos > 0L)
+        {
+            control.timers().cancel(reportTimer);
+            report.printIntervals(streams);
+        }
+
+        if (cpuEnd != null)
+        {
+            cpuStart.report(cpuEnd, test.info);
+        }
+
+        if (test.mode == REQUEST_RESPONSE || test.mode == CONNECTION_RATE)
+        {
+            doReportLatency();
+        }
+
+        // the server ignores this when it ended the test itself
+        doSend(TEST_END);
+
+        if (resultsRequested)
+        {
+            doSendResults();
+        }
+    }
+
+    private void doReportLatency()
+    {
+        // transaction rates are over the measured window, after any omitted seconds
+        final long measuredNanos = endNanos - test.startNanos - SECONDS.toNanos(test.omit);
+        final double seconds = Math.max(measuredNanos, 0L) / (double) SECONDS.toNanos(1L);
+        final IperfHistogram latency = new IperfHistogram();
+
+        for (IperfStream stream : streams)
+        {
+            stream.info.latencySeconds = seconds;
+            latency.add(stream.info.latency);
+        }
+        connectors.forEach(c -> latency.add(c.latency()));
+
+        if (test.mode == CONNECTION_RATE)
+        {
+            test.info.connections = latency;
+        }
+        else
+        {
+            test.info.latency = latency;
+        }
+        test.info.latencySeconds = seconds;
+    }
+
+    private void doSendResults()
+    {
+        final boolean sender = test.mode != REVERSE;
+        test.info.senderHasRetransmits = sender && IperfTcpInfo.isAvailable() ? 1 : -1;
+        doSendJson(IperfUtil.newGson().toJson(test.info));
+    }
+
+    private void doPrintSummary()
+    {
+        final long elapsed = endNanos - test.startNanos;
+
+        System.out.println("- - - - - - - - - - - - - - - - - - - - - - - - -");
+        if (test.mode == REQUEST_RESPONSE)
+        {
+            doPrintLatency();
+        }
+        else if (test.mode == CONNECTION_RATE)
+        {
+            doPrintConnections();
+        }
+        else if (test.mode == BIDIRECTIONAL)
+        {
+            doPrintSummary(elapsed, true, true);
+            doPrintSummary(elapsed, true, false);
+        }
+        else
+        {
+            doPrintSummary(elapsed, false, test.mode == FORWARD);
+        }
+    }
+
+    private void doPrintSummary(
+        long elapsed,
+        boolean bidirectional,
+        boolean sender)
+    {
+        long sumBytes = 0L;
+        long sumPeerBytes = 0L;
+        int count = 0;
+        for (IperfStream stream : streams)
+        {
+            if (stream.info.sender == sender)
+            {
+                final JsonObject peerStream = peerStream(stream.info.id);
+                final long peerBytes = peerStream != null ? peerStream.get("bytes").getAsLong() : 0L;
+                final String id = IperfReport.label(Integer.toString(stream.info.id), bidirectional, sender);
+                doPrintSummary(id, elapsed, sender ? stream.info.bytes : peerBytes, sender ? peerBytes : stream.info.bytes);
+                if (test.verify && !sender)
+                {
+                    doPrintVerification(id, elapsed, stream.info.verifiedBlocks, stream.info.errors,
+                            stream.info.verifyNanos, stream.info.bytes);
+                }
+                else if (test.verify && peerStream != null && peerStream.has("verification"))
+                {
+                    // verified by the server, as the receiver
+                    final JsonObject verification = peerStream.getAsJsonObject("verification");
+                    doPrintVerification(id, elapsed, verification.get("blocks").getAsLong(),
+                            verification.get("corrupted").getAsLong(),
+                            (long) (verification.get("seconds").getAsDouble() * SECONDS.toNanos(1L)), peerBytes);
+                }
+                sumBytes += stream.info.bytes;
+                sumPeerBytes += peerBytes;
+                count++;
+            }
+        }
+
+        if (count > 1)
+        {
+            final String id = IperfReport.label("SUM", bidirectional, sender);
+            doPrintSummary(id, elapsed, sender ? sumBytes : sumPeerBytes, sender ? sumPeerBytes : sumBytes);
+            System.out.format("[%3s] fairness %.3f\n", id, IperfTestInfo.fairness(test.info.streams, sender));
+        }
+    }
+
+    private void doPrintLatency()
+    {
+        // round trips seen by the client, from each response to the next
+        for (IperfStream stream : streams)
+        {
+            doPrintLatency(Integer.toString(stream.info.id), stream.info.latency, stream.info.latencySeconds, "transactions");
+        }
+
+        if (streams.size() > 1)
+        {
+            doPrintLatency("SUM", test.info.latency, test.info.latencySeconds, "transactions");
+        }
+    }
+
+    private void doPrintConnections()
+    {
+        // from connect to response, so each includes the handshake as well as the transaction
+        for (int i = 0; i < connectors.size(); i++)
+        {
+            doPrintLatency(Integer.toString(i + 1), connectors.get(i).latency(), test.info.latencySeconds, "connections");
+        }
+        doPrintLatency("SUM", test.info.connections, test.info.latencySeconds, "connections");
+
+        final JsonElement peerConnections = serverResults != null ? serverResults.get("connections") : null;
+        if (peerConnections != null && peerConnections.isJsonObject())
+        {
+            System.out.format("[SUM] %d connections accepted by the server\n",
+                    peerConnections.getAsJsonObject().get("connections").getAsLong());
+        }
+    }
+
+    private static void doPrintLatency(
+        String id,
+        IperfHistogram latency,
+        double seconds,
+        String name)
+    {
+        System.out.format("[%3s] %d %s  %.1f/sec  p50 %.1f us  p99 %.1f us  p99.9 %.1f us  max %.1f us\n",
+                id, latency.count(), name, seconds > 0.0 ? latency.count() / seconds : 0.0,
+                latency.valueAtPercentile(50.0) / 1e3, latency.valueAtPercentile(99.0) / 1e3,
+                latency.valueAtPercentile(99.9) / 1e3, latency.max() / 1e3);
+    }
+
+    private static void doPrintSummary(
+        String id,
+        long elapsed,
+        long sentBytes,
+        long receivedBytes)
+    {
+        // sender first then receiver, whichever end this is
+        System.out.format("%s  sender\n", IperfUtil.formatInterval(id, 0L, elapsed, sentBytes, false));
+        System.out.format("%s  receiver\n", IperfUtil.formatInterval(id, 0L, elapsed, receivedBytes, false));
+    }
+
+    private static void doPrintVerification(
+        String id,
+        long elapsed,
+        long blocks,
+        long corrupted,
+        long verifyNanos,
+        long bytes)
+    {
+        // time spent checksumming is time the receiving worker was not reading, so its share bounds the cost
+        final double gbitsPerSecond = verifyNanos > 0L ? bytes * 8.0 / verifyNanos : 0.0;
+        final double share = elapsed > 0L ? verifyNanos * 100.0 / elapsed : 0.0;
+        System.out.format("[%3s] verified %d blocks, %d corrupted, CRC32C at %.1f Gbits/sec, %.1f%% of test time\n",
+                id, blocks, corrupted, gbitsPerSecond, share);
+    }
+
+    JsonObject serverResults()
+    {
+        return serverResults;
+    }
+
+    JsonObject peerStream(
+        int id)
+    {
+        JsonObject stream = null;
+
+        final JsonElement peerStreams = serverResults != null ? serverResults.get("streams") : null;
+        if (peerStreams != null && peerStreams.isJsonArray())
+        {
+            for (JsonElement peerStream : peerStreams.getAsJsonArray())
+            {
+                final JsonObject object = peerStream.getAsJsonObject();
+                if (object.get("id").getAsInt() == id)
+                {
+                    stream = object;
+                }
+            }
+        }
+
+        return stream;
+    }
+
+    private long[] doThreadIds()
+    {
+        final long[] threadIds = new long[threads.length + 1];
+        threadIds[0] = Thread.currentThread().getId();
+        for (int i = 0; i < threads.length; i++)
+        {
+            threadIds[i + 1] = threads[i].getId();
+        }
+        return threadIds;
+    }
+
+    private SocketChannel doConnect() throws IOException
+    {
+        // connect and present the cookie before going non-blocking, as the server expects it first
+        final SocketChannel newChannel = SocketChannel.open(remote);
+        final ByteBuffer cookie = ByteBuffer.wrap(test.cookie.getBytes(US_ASCII));
+        while (cookie.hasRemaining())
+        {
+            newChannel.write(cookie);
+        }
+        newChannel.configureBlocking(false);
+        return newChannel;
+    }
+
+    private IperfWorker nextWorker()
+    {
+        IperfWorker worker = control;
+
+        if (workers.length != 0)
+        {
+            worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+
+        return worker;
+    }
+
+    private String doDecodeJson()
+    {
+        // JSON message (4-byte length prefix)
+        String json = null;
+
+        if (inputBuffer.remaining() >= Integer.BYTES)
+        {
+            final int size = inputBuffer.getInt(inputBuffer.position());
+
+            if (size < 0 || size > MAX_MESSAGE_SIZE)
+            {
+                doTerminate();
+            }
+            else if (inputBuffer.remaining() >= Integer.BYTES + size)
+            {
+                final byte[] bytes = new byte[size];
+                inputBuffer.position(inputBuffer.position() + Integer.BYTES);
+                inputBuffer.get(bytes);
+                json = new String(bytes, UTF_8);
+            }
+            else if (Integer.BYTES + size > inputBuffer.capacity())
+            {
+                final ByteBuffer newInputBuffer = buffers.acquire(Integer.BYTES + size);
+                newInputBuffer.put(inputBuffer);
+                newInputBuffer.flip();
+                buffers.release(inputBuffer);
+                inputBuffer = newInputBuffer;
+            }
+        }
+
+        return json;
+    }
+
+    private void doTerminate()
+    {
+        if (test.state != IPERF_START && !isDone())
+        {
+            System.err.println("iperf4j: control connection closed before the test completed");
+        }
+        test.state = CLIENT_TERMINATE;
+        streams.forEach(IperfStream::close);
+        connectors.forEach(IperfConnector::close);
+    }
+
+    private void doSend(
+        IperfState state)
+    {
+        doEnsureOutput(Byte.BYTES);
+        outputBuffer.put(state.value());
+        doFlush();
+    }
+
+    private void doSendJson(
+        String json)
+    {
+        final byte[] bytes = json.getBytes(UTF_8);
+
+        doEnsureOutput(Integer.BYTES + bytes.length);
+        outputBuffer.putInt(bytes.length);
+        outputBuffer.put(bytes);
+        doFlush();
+    }
+
+    private void doEnsureOutput(
+        int nbytes)
+    {
+        if (outputBuffer.remaining() < nbytes)
+        {
+            final int capacity = Math.max(outputBuffer.capacity() << 1, outputBuffer.position() + nbytes);
+            final ByteBuffer newOutputBuffer = buffers.acquire(capacity);
+            outputBuffer.flip();
+            newOutputBuffer.put(outputBuffer);
+            buffers.release(outputBuffer);
+            outputBuffer = newOutputBuffer;
+        }
+    }
+
+    private void doFlush()
+    {
+        try
+        {
+            outputBuffer.flip();
+            channel.write(outputBuffer);
+            outputBuffer.compact();
+
+            final int interestOps = outputBuffer.position() != 0 ? OP_READ | OP_WRITE : OP_READ;
+            if (key.isValid() && key.interestOps() != interestOps)
+            {
+                key.interestOps(interestOps);
+            }
+        }
+        catch (IOException ex)
+        {
+            doTerminate();
+        }
+    }
+
+    private static String newCookie()
+    {
+        // 36 printable characters and a terminating NUL, as iperf3 generates
+        final String uuid = UUID.randomUUID().toString().replace("-", "");
+        return (uuid + uuid).substring(0, IperfHandshake.COOKIE_SIZE - 1) + '\0';
+    }
+}
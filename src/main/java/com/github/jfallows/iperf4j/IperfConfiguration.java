@@ -0,0 +1,36 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.nio.file.Path;
+
+public final class IperfConfiguration
+{
+    int workers;
+    int maxTests;
+    long intervalNanos;
+    long maxRate;
+    long bufferPoolCapacity;
+    int batch;
+    long budget = 256 * 1024;
+    int backlog;
+    int acceptors;
+    boolean splitDirections;
+    IperfEngine engine = IperfEngine.SELECTOR;
+    Path file;
+    Path resultsLog;
+    long resultsSegmentSize = 64L * 1024 * 1024;
+}
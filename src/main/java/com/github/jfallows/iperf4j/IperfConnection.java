@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static com.github.jfallows.iperf4j.IperfState.TEST_RUNNING;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Single transaction on its own connection, in the style of netperf TCP_CRR. Reads one request,
+ * echoes it and closes, recording the time from accept to response on the servicing worker.
+ */
+public final class IperfConnection
+{
+    private final IperfWorker worker;
+    private final SocketChannel channel;
+    private final IperfHistogram latency;
+    private final IperfTest test;
+    private final ByteBuffer buffer;
+    private final long acceptNanos;
+
+    private SelectionKey key;
+    private boolean responding;
+
+    public IperfConnection(
+        IperfWorker worker,
+        SocketChannel channel,
+        IperfHistogram latency,
+        IperfTest test,
+        long acceptNanos)
+    {
+        this.worker = worker;
+        this.channel = channel;
+        this.latency = latency;
+        this.test = test;
+        this.buffer = ByteBuffer.allocate(test.length);
+        this.acceptNanos = acceptNanos;
+    }
+
+    void register()
+    {
+        try
+        {
+            key = worker.register(channel, OP_READ, this::onReadyOps);
+        }
+        catch (IOException ex)
+        {
+            close();
+        }
+    }
+
+    void attach(
+        SelectionKey key)
+    {
+        this.key = key;
+        IperfWorker.attach(key, this::onReadyOps);
+    }
+
+    private void onReadyOps(
+        SelectionKey key)
+    {
+        try
+        {
+            if (responding)
+            {
+                onWritable();
+            }
+            else
+            {
+                onReadable();
+            }
+        }
+        catch (IOException ex)
+        {
+            close();
+        }
+    }
+
+    private void onReadable() throws IOException
+    {
+        if (channel.read(buffer) == -1)
+        {
+            close();
+        }
+        else if (!buffer.hasRemaining())
+        {
+            buffer.flip();
+            responding = true;
+            onWritable();
+        }
+    }
+
+    private void onWritable() throws IOException
+    {
+        channel.write(buffer);
+
+        if (buffer.hasRemaining())
+        {
+            key.interestOps(OP_WRITE);
+        }
+        else
+        {
+            // connections accepted while omitting or completing after the test ends are not counted
+            if (test.state == TEST_RUNNING && acceptNanos - test.startNanos >= SECONDS.toNanos(test.omit))
+            {
+                latency.record(System.nanoTime() - acceptNanos);
+            }
+            close();
+        }
+    }
+
+    private void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            // ignore
+        }
+    }
+}
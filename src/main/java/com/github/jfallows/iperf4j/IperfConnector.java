@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client side of connection-rate mode, in the style of netperf TCP_CRR. Connects, presents the test
+ * cookie followed by one request, reads the echoed response and closes, then connects again, recording
+ * the time from connect to response on its worker.
+ */
+public final class IperfConnector
+{
+    private final IperfWorker worker;
+    private final SocketAddress remote;
+    private final ByteBuffer request;
+    private final ByteBuffer response;
+    private final IperfHistogram latency;
+
+    private SocketChannel channel;
+    private long connectNanos;
+    private long measureNanos;
+    private boolean stopped;
+
+    public IperfConnector(
+        IperfWorker worker,
+        SocketAddress remote,
+        String cookie,
+        int length)
+    {
+        this.worker = worker;
+        this.remote = remote;
+        this.request = ByteBuffer.allocate(cookie.length() + length);
+        this.request.put(cookie.getBytes(US_ASCII));
+        this.response = ByteBuffer.allocate(length);
+        this.latency = new IperfHistogram();
+    }
+
+    public IperfHistogram latency()
+    {
+        return latency;
+    }
+
+    void start(
+        long startNanos,
+        int omit)
+    {
+        worker.execute(() ->
+        {
+            measureNanos = startNanos + SECONDS.toNanos(omit);
+            doConnect();
+        });
+    }
+
+    void stop(
+        Runnable completion)
+    {
+        // the histogram has a single writer, so it is only read once the worker has stopped recording
+        worker.execute(() ->
+        {
+            stopped = true;
+            close();
+            completion.run();
+        });
+    }
+
+    void close()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                // ignore
+            }
+        }
+    }
+
+    private void doConnect()
+    {
+        try
+        {
+            request.clear();
+            response.clear();
+            connectNanos = System.nanoTime();
+
+            channel = remote instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                                                                : SocketChannel.open();
+            channel.configureBlocking(false);
+            final boolean connected = channel.connect(remote);
+            worker.register(channel, connected ? OP_WRITE : OP_CONNECT, this::onReadyOps);
+        }
+        catch (IOException ex)
+        {
+            // refused or out of local ports, so stop rather than spin on the failure
+            stopped = true;
+            close();
+        }
+    }
+
+    private void onReadyOps(
+        SelectionKey key)
+    {
+        try
+        {
+            if (key.isConnectable())
+            {
+                if (channel.finishConnect())
+                {
+                    key.interestOps(OP_WRITE);
+                }
+            }
+            else if (key.isWritable())
+            {
+                channel.write(request);
+                if (!request.hasRemaining())
+                {
+                    key.interestOps(OP_READ);
+                }
+            }
+            else if (key.isReadable())
+            {
+                onReadable();
+            }
+        }
+        catch (IOException ex)
+        {
+            stopped = true;
+            close();
+        }
+    }
+
+    private void onReadable() throws IOException
+    {
+        if (channel.read(response) == -1)
+        {
+            // the server closes without responding once its test is no longer running
+            stopped = true;
+            close();
+        }
+        else if (!response.hasRemaining())
+        {
+            final long now = System.nanoTime();
+            if (connectNanos - measureNanos >= 0L)
+            {
+                latency.record(now - connectNanos);
+            }
+            close();
+
+            if (!stopped)
+            {
+                doConnect();
+            }
+        }
+    }
+}
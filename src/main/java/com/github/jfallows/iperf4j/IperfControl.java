@@ -16,7 +16,9 @@
 package com.github.jfallows.iperf4j;
 
 import static com.github.jfallows.iperf4j.IperfMode.BIDIRECTIONAL;
+import static com.github.jfallows.iperf4j.IperfMode.CONNECTION_RATE;
 import static com.github.jfallows.iperf4j.IperfMode.FORWARD;
+import static com.github.jfallows.iperf4j.IperfMode.REQUEST_RESPONSE;
 import static com.github.jfallows.iperf4j.IperfMode.REVERSE;
 import static com.github.jfallows.iperf4j.IperfState.CLIENT_TERMINATE;
 import static com.github.jfallows.iperf4j.IperfState.CREATE_STREAMS;
@@ -24,99 +26,434 @@ import static com.github.jfallows.iperf4j.IperfState.DISPLAY_RESULTS;
 import static com.github.jfallows.iperf4j.IperfState.EXCHANGE_RESULTS;
 import static com.github.jfallows.iperf4j.IperfState.IPERF_DONE;
 import static com.github.jfallows.iperf4j.IperfState.PARAM_EXCHANGE;
+import static com.github.jfallows.iperf4j.IperfState.SERVER_ERROR;
+import static com.github.jfallows.iperf4j.IperfState.TEST_END;
 import static com.github.jfallows.iperf4j.IperfState.TEST_RUNNING;
 import static com.github.jfallows.iperf4j.IperfState.TEST_START;
+import static com.github.jfallows.iperf4j.IperfUtil.asInt;
+import static com.github.jfallows.iperf4j.IperfUtil.asLong;
 import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
 public class IperfControl implements AutoCloseable
 {
-    private static final int COOKIE_SIZE = 37; // size of ASCII UUID
+    private static final int CONTROL_BUFFER_SIZE = 32768;
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    private static final int DEFAULT_TCP_LENGTH = 128 * 1024; // 128K
+    private static final int DEFAULT_UDP_LENGTH = 1460;
+    private static final int DEFAULT_RR_LENGTH = 1;
+    private static final int MAX_LENGTH = 1024 * 1024; // iperf3 MAX_BLOCKSIZE
+    private static final int MAX_UDP_LENGTH = 65535 - 8 - 20; // iperf3 MAX_UDP_BLOCKSIZE
+    private static final int MAX_BATCH_SIZE = 1024 * 1024;
+    private static final int DEFAULT_INTERVALS = 256;
+    private static final int MAX_INTERVALS = 4096;
+    private static final long DEFAULT_PACING_TIMER = 1000L; // microseconds
+    private static final int IE_NONE = 0;
+    private static final int IE_BLOCKSIZE = 7; // iperf3 IEBLOCKSIZE, "block size too large"
+    private static final int IE_UNIMPLEMENTED = 13; // iperf3 IEUNIMP, "not implemented yet"
+    private static final int IE_FILE = 14; // iperf3 IEFILE, "unable to open -F file"
+    private static final int IE_UDP_BLOCKSIZE = 20; // iperf3 IEUDPBLOCKSIZE, "block size invalid"
+    private static final int IE_RECV_PARAMS = 114; // iperf3 IERECVPARAMS, "unable to receive parameters from client"
 
+    // options the JDK cannot set on a socket, or protocols it cannot open, so the test would not be what was asked for
+    private static final String[] UNSUPPORTED_PARAMS = { "sctp", "MSS", "congestion", "flowlabel", "dont_fragment" };
+    private static final long MIN_PACING_BURST = MILLISECONDS.toNanos(4L);
+
+    private final IperfWorker acceptor;
+    private final IperfBufferPool buffers;
     private final IperfTest test;
     private final SocketChannel channel;
-    private final ByteBuffer controlBuffer;
     private final Set<IperfStream> streams;
+    private final NavigableMap<Long, SocketChannel> acceptedStreams;
+    private final Map<IperfWorker, IperfHistogram> connections;
+    private final AtomicInteger quiescing;
+    private final IperfTimer omitTimer;
+    private final IperfTimer endTimer;
+    private final IperfTimer reportTimer;
+    private final IperfReport report;
 
+    private SelectionKey key;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
     private ByteBuffer readBuffer;
     private ByteBuffer writeBuffer;
+    private ByteBuffer sharedWriteBuffer;
+    private IperfLimits limits;
+    private IperfSocketOptions socketOptions;
+    private FileChannel source;
+    private FileChannel[] sinks;
+    private long reportDeadline;
+    private IperfCpuUsage cpuStart;
+    private IperfCpuUsage cpuEnd;
+    private long endNanos;
 
     public IperfControl(
+        IperfWorker acceptor,
+        IperfBufferPool buffers,
         IperfTest test,
         SocketChannel channel)
     {
+        this.acceptor = acceptor;
+        this.buffers = buffers;
         this.test = test;
         this.channel = channel;
-        this.controlBuffer = ByteBuffer.allocateDirect(32768);
+        this.inputBuffer = buffers.acquire(CONTROL_BUFFER_SIZE);
+        this.outputBuffer = buffers.acquire(CONTROL_BUFFER_SIZE);
         this.streams = new LinkedHashSet<>();
+        this.acceptedStreams = new TreeMap<>();
+        this.connections = new ConcurrentHashMap<>();
+        this.quiescing = new AtomicInteger();
+        this.omitTimer = new IperfTimer(this::onOmitTimer);
+        this.endTimer = new IperfTimer(this::onTestLimit);
+        this.reportTimer = new IperfTimer(this::onReportTimer);
+        this.report = new IperfReport();
+    }
+
+    public void acceptStream(
+        SocketChannel child,
+        long sequence)
+    {
+        acceptedStreams.put(sequence, child);
+    }
+
+    public SocketChannel nextAcceptedStream()
+    {
+        // cookies complete in any order, so streams are only created, by accept sequence, once all have arrived
+        return streams.size() + acceptedStreams.size() == streamCount() && !acceptedStreams.isEmpty()
+                ? acceptedStreams.pollFirstEntry().getValue() : null;
+    }
+
+    public IperfStream createStream(
+        IperfWorker worker,
+        SocketChannel child,
+        IperfTestStreamInfo newStreamInfo)
+    {
+        socketOptions.apply(child, test.info);
+        if (test.mode == REQUEST_RESPONSE)
+        {
+            return doAddStream(new IperfRrStream(worker, newStreamInfo, child, buffers, test.length));
+        }
+        final FileChannel sink = takeSink(streams.size());
+        final IperfVerifier verifier = test.verify && !newStreamInfo.sender
+                ? new IperfVerifier(newStreamInfo, test.length, test.verifySeed) : null;
+        return doAddStream(new IperfTcpStream(worker, newStreamInfo, child, buffers, readBuffer, writeBuffer, test.length,
+                source, sink, verifier));
     }
 
     public IperfStream createStream(
-        SocketChannel child)
+        IperfWorker worker,
+        DatagramChannel child,
+        IperfTestStreamInfo newStreamInfo)
+    {
+        socketOptions.apply(child, test.info);
+        return doAddStream(new IperfUdpStream(worker, newStreamInfo, child, buffers, test.length, test.udpCounters64));
+    }
+
+    public IperfConnection createConnection(
+        IperfWorker worker,
+        SocketChannel child,
+        long acceptNanos)
+    {
+        // one histogram per worker keeps each single writer, created by whichever acceptor took the connection
+        final IperfHistogram latency = connections.computeIfAbsent(worker, w -> new IperfHistogram());
+        return new IperfConnection(worker, child, latency, test, acceptNanos);
+    }
+
+    private FileChannel takeSink(
+        int index)
+    {
+        FileChannel sink = null;
+
+        if (sinks != null)
+        {
+            // handed to the stream, which closes it
+            sink = sinks[index];
+            sinks[index] = null;
+        }
+
+        return sink;
+    }
+
+    public IperfTestStreamInfo newStreamInfo()
     {
+        // id and direction both follow from the stream's place in accept order, decided once before its worker is chosen
+        final int index = streams.size();
         final IperfTestStreamInfo newStreamInfo = new IperfTestStreamInfo();
-        newStreamInfo.id = streams.isEmpty() ? 1 : streams.size() + 2;
-        final IperfStream newStream = new IperfStream(newStreamInfo, child, readBuffer, writeBuffer);
+        newStreamInfo.id = streamId(index);
+
+        // the client's sending streams come first, so the server receives on those and sends on the rest
+        newStreamInfo.sender = test.mode == REVERSE || test.mode == BIDIRECTIONAL && index >= test.streams;
+        return newStreamInfo;
+    }
+
+    private static int streamId(
+        int index)
+    {
+        return index == 0 ? 1 : index + 2;
+    }
+
+    private int streamCount()
+    {
+        // bidirectional tests have a stream per direction, as iperf3 connects its senders then its receivers
+        return test.mode == BIDIRECTIONAL ? test.streams << 1 : test.streams;
+    }
+
+    private IperfStream doAddStream(
+        IperfStream newStream)
+    {
+        newStream.limits = limits;
+        newStream.budget = test.budget;
+
+        // the test cap is split evenly across the sending streams, as a shared bucket goes to whichever stream
+        // polls it first while the others wait on their pace timers
+        final long share = test.maxRate != 0L && newStream.info.sender ? Math.max(test.maxRate / test.streams, 1L) : 0L;
+        final long rate = test.rate != 0L && share != 0L ? Math.min(test.rate, share) : Math.max(test.rate, share);
+        if (rate != 0L)
+        {
+            newStream.pacer = new IperfPacer(rate, test.pacingBurstNanos);
+        }
         streams.add(newStream);
-        test.info.streams.add(newStreamInfo);
+        test.info.streams.add(newStream.info);
 
-        if (streams.size() == test.streams)
+        if (streams.size() == streamCount())
         {
-            doChangeState(TEST_START);
-            // TODO: (setup timers, etc)
-            doChangeState(TEST_RUNNING);
+            doStartTest();
         }
 
         return newStream;
     }
 
+    private void doStartTest()
+    {
+        doChangeState(TEST_START);
+        if (!isDone())
+        {
+            cpuStart = IperfCpuUsage.sample(doThreadIds());
+            doStartTimers();
+            doChangeState(TEST_RUNNING);
+        }
+    }
+
+    public void start(
+        SelectionKey key)
+    {
+        this.key = key;
+        doChangeState(PARAM_EXCHANGE);
+    }
+
+    public boolean canAcceptConnections()
+    {
+        return test.state == TEST_RUNNING && test.mode == CONNECTION_RATE;
+    }
+
     public boolean canCreateStreams()
     {
-        return streams.size() < test.streams;
+        return test.state == CREATE_STREAMS && "tcp".equals(test.protocol) &&
+                streams.size() + acceptedStreams.size() < streamCount();
+    }
+
+    public boolean canCreateStreams(
+        SocketAddress sender) throws IOException
+    {
+        final InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+
+        return test.state == CREATE_STREAMS && "udp".equals(test.protocol) && streams.size() < streamCount() &&
+                sender instanceof InetSocketAddress &&
+                remote.getAddress().equals(((InetSocketAddress) sender).getAddress());
+    }
+
+    public boolean isDone()
+    {
+        return test.state == IPERF_DONE || test.state == CLIENT_TERMINATE || test.state == SERVER_ERROR;
     }
 
     @Override
     public void close() throws IOException
     {
+        acceptor.timers().cancel(omitTimer);
+        acceptor.timers().cancel(endTimer);
+        acceptor.timers().cancel(reportTimer);
         channel.close();
-        streams.forEach(IperfStream::close);
+        for (SocketChannel accepted : acceptedStreams.values())
+        {
+            accepted.close();
+        }
+        acceptedStreams.clear();
+
+        // workers may still be transferring, so the buffers and file shared by the streams wait for every stream
+        // to close on its own worker
+        final AtomicInteger closing = new AtomicInteger(streams.size() + 1);
+        final Runnable closed = () ->
+        {
+            if (closing.decrementAndGet() == 0)
+            {
+                acceptor.execute(this::doReleaseStreams);
+            }
+        };
+        streams.forEach(s -> s.close(closed));
+        closed.run();
+
+        buffers.release(inputBuffer);
+        buffers.release(outputBuffer);
+        inputBuffer = null;
+        outputBuffer = null;
+    }
+
+    private void doReleaseStreams()
+    {
+        doCloseQuietly(source);
+
+        if (sinks != null)
+        {
+            // sinks never taken by a stream, as the test ended before all of its streams arrived
+            Stream.of(sinks).forEach(IperfControl::doCloseQuietly);
+        }
+
+        buffers.release(readBuffer);
+        buffers.release(sharedWriteBuffer);
+        readBuffer = null;
+        sharedWriteBuffer = null;
+    }
+
+    private static void doCloseQuietly(
+        FileChannel file)
+    {
+        if (file != null)
+        {
+            try
+            {
+                file.close();
+            }
+            catch (IOException ex)
+            {
+                // ignore
+            }
+        }
     }
 
     void onReadyOps(
         SelectionKey key)
     {
-        assert (key.readyOps() & OP_READ) != 0;
+        final int readyOps = key.readyOps();
 
-        switch (test.state)
+        if ((readyOps & OP_WRITE) != 0)
         {
-        case IPERF_START:
-            doReadCookie();
-            doChangeState(PARAM_EXCHANGE);
-            break;
-        case PARAM_EXCHANGE:
-            doExchangeParams();
-            doChangeState(CREATE_STREAMS);
-            break;
-        case EXCHANGE_RESULTS:
-            doExchangeResults();
-            doChangeState(DISPLAY_RESULTS);
-            break;
-        default:
-            doReadState();
-            onStateChange();
-            break;
+            doFlush();
+        }
+
+        if ((readyOps & OP_READ) != 0)
+        {
+            doRead();
+        }
+    }
+
+    private void doRead()
+    {
+        try
+        {
+            if (channel.read(inputBuffer) == -1)
+            {
+                doTerminate();
+            }
+            else
+            {
+                inputBuffer.flip();
+                doDecode();
+                inputBuffer.compact();
+            }
+        }
+        catch (IOException ex)
+        {
+            doTerminate();
+        }
+    }
+
+    private void doDecode()
+    {
+        boolean decoded = true;
+
+        while (decoded && !isDone())
+        {
+            switch (test.state)
+            {
+            case PARAM_EXCHANGE:
+                final String params = doDecodeJson();
+                decoded = params != null;
+                final int error = decoded ? doExchangeParams(params) : IE_NONE;
+                if (error != IE_NONE)
+                {
+                    doServerError(error);
+                }
+                else if (decoded)
+                {
+                    doChangeState(CREATE_STREAMS);
+                    if (test.mode == CONNECTION_RATE)
+                    {
+                        // each transaction brings its own connection, so there are no streams to wait for
+                        doStartTest();
+                    }
+                }
+                break;
+            case EXCHANGE_RESULTS:
+                // client may also have sent TEST_END when the server ended the test,
+                // never a valid first byte of the length prefix given MAX_MESSAGE_SIZE
+                if (inputBuffer.hasRemaining() && inputBuffer.get(inputBuffer.position()) == TEST_END.value())
+                {
+                    inputBuffer.get();
+                }
+                final String results = doDecodeJson();
+                decoded = results != null;
+                if (decoded)
+                {
+                    doExchangeResults(results);
+                    doChangeState(DISPLAY_RESULTS);
+                }
+                break;
+            default:
+                decoded = inputBuffer.hasRemaining();
+                if (decoded)
+                {
+                    doDecodeState();
+                }
+                break;
+            }
         }
     }
 
@@ -127,11 +464,7 @@ public class IperfControl implements AutoCloseable
         case TEST_START:
             break;
         case TEST_END:
-            if (test.mode == FORWARD)
-            {
-                streams.forEach(IperfStream::close);
-            }
-            doChangeState(EXCHANGE_RESULTS);
+            doQuiesceStreams();
             break;
         case IPERF_DONE:
             break;
@@ -146,57 +479,283 @@ public class IperfControl implements AutoCloseable
         }
     }
 
-    private void doReadState()
+    private void doStartTimers()
     {
-        ByteBuffer stateBuf = doReadNBytes(1);
+        final IperfTimerWheel timers = acceptor.timers();
+        final long now = System.nanoTime();
+        test.startNanos = now;
 
-        if (stateBuf.hasRemaining())
+        if (test.omit > 0)
         {
-            byte stateByte = stateBuf.get();
-            IperfState state = IperfState.valueOf(stateByte);
+            timers.schedule(omitTimer, now + SECONDS.toNanos(test.omit));
+        }
 
-            test.state = state;
+        if (test.duration > 0 && test.bytesLimit == 0L && test.blocksLimit == 0L)
+        {
+            timers.schedule(endTimer, now + SECONDS.toNanos(test.omit + test.duration));
+        }
+
+        final long intervalNanos = test.intervalNanos;
+        if (intervalNanos > 0L)
+        {
+            final int capacity = test.duration > 0
+                    ? (int) Math.min(SECONDS.toNanos(test.omit + test.duration) / intervalNanos + 2, MAX_INTERVALS)
+                    : DEFAULT_INTERVALS;
+            final boolean datagram = "udp".equals(test.protocol);
+
+            for (IperfStream stream : streams)
+            {
+                stream.info.intervals = new IperfIntervals(capacity, datagram);
+            }
+
+            // report just after the streams snapshot each interval
+            reportDeadline = now + intervalNanos + MILLISECONDS.toNanos(1L);
+            timers.schedule(reportTimer, reportDeadline);
+        }
+
+        streams.forEach(s -> s.start(now, intervalNanos, test.omit > 0));
+    }
+
+    private void onReportTimer()
+    {
+        if (test.state == TEST_RUNNING)
+        {
+            report.printIntervals(streams);
+
+            reportDeadline += test.intervalNanos;
+            acceptor.timers().schedule(reportTimer, reportDeadline);
+        }
+    }
+
+    private void onOmitTimer()
+    {
+        if (test.state == TEST_RUNNING)
+        {
+            streams.forEach(IperfStream::omit);
+        }
+    }
+
+    private void onTestLimit()
+    {
+        if (test.state == TEST_RUNNING)
+        {
+            doChangeState(TEST_END);
+            onStateChange();
+        }
+    }
+
+    private void doQuiesceStreams()
+    {
+        // streams may be serviced by other workers, so counters are
+        // only read for results after every stream has stopped
+        final boolean close = test.mode == FORWARD;
+        endNanos = System.nanoTime();
+
+        if (cpuStart != null)
+        {
+            cpuEnd = IperfCpuUsage.sample(doThreadIds());
+        }
+
+        final List<IperfWorker> connectionWorkers = new ArrayList<>(connections.keySet());
+        quiescing.set(streams.size() + connectionWorkers.size() + 1);
+        streams.forEach(s -> s.quiesce(close, this::onStreamQuiesced));
+        connectionWorkers.forEach(w -> w.execute(this::onStreamQuiesced));
+        onStreamQuiesced();
+    }
+
+    private void onStreamQuiesced()
+    {
+        if (quiescing.decrementAndGet() == 0)
+        {
+            acceptor.execute(this::onStreamsQuiesced);
+        }
+    }
+
+    private void onStreamsQuiesced()
+    {
+        if (test.state == TEST_END)
+        {
+            if (test.intervalNanos > 0L)
+            {
+                acceptor.timers().cancel(reportTimer);
+                report.printIntervals(streams);
+            }
+
+            if (cpuEnd != null)
+            {
+                cpuStart.report(cpuEnd, test.info);
+            }
+
+            if (test.mode == REQUEST_RESPONSE || test.mode == CONNECTION_RATE)
+            {
+                doReportLatency();
+            }
+
+            if (test.resultsLog != null)
+            {
+                doLogResults();
+            }
+
+            doChangeState(EXCHANGE_RESULTS);
+        }
+    }
+
+    private void doLogResults()
+    {
+        // logged as soon as every stream has stopped, so kept even if the client never exchanges results
+        try
+        {
+            test.resultsLog.append(test, endNanos);
+        }
+        catch (IOException ex)
+        {
+            System.err.format("iperf4j: unable to log results: %s\n", ex.getMessage());
+        }
+    }
+
+    private void doReportLatency()
+    {
+        // transaction rates are over the measured window, after any omitted seconds
+        final long measuredNanos = endNanos - test.startNanos - SECONDS.toNanos(test.omit);
+        final double seconds = Math.max(measuredNanos, 0L) / (double) SECONDS.toNanos(1L);
+        final IperfHistogram latency = new IperfHistogram();
+
+        for (IperfStream stream : streams)
+        {
+            stream.info.latencySeconds = seconds;
+            latency.add(stream.info.latency);
+        }
+        connections.values().forEach(latency::add);
+
+        if (test.mode == CONNECTION_RATE)
+        {
+            test.info.connections = latency;
         }
         else
         {
-            test.state = CLIENT_TERMINATE;
+            test.info.latency = latency;
         }
+        test.info.latencySeconds = seconds;
     }
 
-    private void doReadCookie()
+    private long[] doThreadIds()
     {
-        ByteBuffer cookieBuf = doReadNBytes(COOKIE_SIZE);
-        byte[] cookieBytes = new byte[cookieBuf.remaining()];
-        cookieBuf.get(cookieBytes);
-        test.cookie = new String(cookieBytes, UTF_8);
+        // acceptor first, then each distinct worker servicing a stream
+        final long acceptorId = acceptor.threadId();
+        final LongStream workerIds = streams.stream()
+            .mapToLong(s -> s.worker.threadId())
+            .filter(id -> id != 0L && id != acceptorId)
+            .distinct();
+        return LongStream.concat(LongStream.of(acceptorId), workerIds).toArray();
     }
 
-    private void doExchangeParams()
+    private void doDecodeState()
     {
-        // read JSON params (4-byte length prefix)
-        ByteBuffer sizeBuf = doReadNBytes(Integer.BYTES);
-        int size = sizeBuf.getInt();
-        ByteBuffer paramsBuf = doReadNBytes(size);
-        byte[] paramsBytes = new byte[paramsBuf.remaining()];
-        paramsBuf.get(paramsBytes);
-        String paramsUTF8 = new String(paramsBytes, UTF_8);
+        final IperfState state = IperfState.valueOf(inputBuffer.get());
 
-        final JsonObject params = (JsonObject) new JsonParser().parse(paramsUTF8);
+        if (state == null)
+        {
+            doTerminate();
+        }
+        else if (state != TEST_END || test.state != TEST_END) // ignore when already ended by the server
+        {
+            test.state = state;
+            onStateChange();
+        }
+    }
+
+    private String doDecodeJson()
+    {
+        // JSON message (4-byte length prefix)
+        String json = null;
+
+        if (inputBuffer.remaining() >= Integer.BYTES)
+        {
+            final int size = inputBuffer.getInt(inputBuffer.position());
+
+            if (size < 0 || size > MAX_MESSAGE_SIZE)
+            {
+                doTerminate();
+            }
+            else if (inputBuffer.remaining() >= Integer.BYTES + size)
+            {
+                final byte[] bytes = new byte[size];
+                inputBuffer.position(inputBuffer.position() + Integer.BYTES);
+                inputBuffer.get(bytes);
+                json = new String(bytes, UTF_8);
+            }
+            else if (Integer.BYTES + size > inputBuffer.capacity())
+            {
+                final ByteBuffer newInputBuffer = buffers.acquire(Integer.BYTES + size);
+                newInputBuffer.put(inputBuffer);
+                newInputBuffer.flip();
+                buffers.release(inputBuffer);
+                inputBuffer = newInputBuffer;
+            }
+        }
+
+        return json;
+    }
+
+    private void doTerminate()
+    {
+        test.state = CLIENT_TERMINATE;
+        onStateChange();
+    }
+
+    private int doExchangeParams(
+        String paramsUTF8)
+    {
+        try
+        {
+            final JsonObject params = (JsonObject) new JsonParser().parse(paramsUTF8);
+            return Stream.of(UNSUPPORTED_PARAMS).anyMatch(params::has) ? IE_UNIMPLEMENTED : doExchangeParams(params);
+        }
+        catch (JsonParseException | ClassCastException | IllegalStateException | UnsupportedOperationException |
+               NumberFormatException | ArithmeticException ex)
+        {
+            // malformed JSON, a non-object body or a field of the wrong type or range fails only this test
+            return IE_RECV_PARAMS;
+        }
+    }
+
+    private int doExchangeParams(
+        JsonObject params)
+    {
         final JsonElement tcp = params.get("tcp");
+        final JsonElement udp = params.get("udp");
         if (tcp != null && tcp.getAsBoolean())
         {
             test.protocol = "tcp";
         }
+        else if (udp != null && udp.getAsBoolean())
+        {
+            test.protocol = "udp";
+        }
+
+        final JsonElement udpCounters64 = params.get("udp_counters_64bit");
+        test.udpCounters64 = udpCounters64 != null && udpCounters64.getAsBoolean();
 
         final JsonElement parallel = params.get("parallel");
         if (parallel != null)
         {
-            test.streams = parallel.getAsInt();
+            test.streams = asInt(parallel);
         }
 
         final JsonElement bidirectional = params.get("bidirectional");
         final JsonElement reverse = params.get("reverse");
-        if (bidirectional != null && bidirectional.getAsBoolean())
+        final JsonElement requestResponse = params.get("request_response");
+        final JsonElement connectionRate = params.get("connection_rate");
+        if (connectionRate != null && connectionRate.getAsBoolean() && "tcp".equals(test.protocol))
+        {
+            test.mode = CONNECTION_RATE;
+            test.streams = 0;
+        }
+        else if (requestResponse != null && requestResponse.getAsBoolean() && "tcp".equals(test.protocol))
+        {
+            test.mode = REQUEST_RESPONSE;
+        }
+        else if (bidirectional != null && bidirectional.getAsBoolean())
         {
             test.mode = BIDIRECTIONAL;
         }
@@ -210,97 +769,259 @@ public class IperfControl implements AutoCloseable
         }
 
         final JsonElement len = params.get("len");
-        if (len != null)
+        if (len != null && asInt(len) > 0)
+        {
+            test.length = asInt(len);
+        }
+        else if (test.mode == REQUEST_RESPONSE || test.mode == CONNECTION_RATE)
+        {
+            test.length = DEFAULT_RR_LENGTH;
+        }
+        else if ("udp".equals(test.protocol))
         {
-            readBuffer = ByteBuffer.allocateDirect(len.getAsInt());
-            writeBuffer = ByteBuffer.allocateDirect(len.getAsInt()).asReadOnlyBuffer();
+            test.length = DEFAULT_UDP_LENGTH;
         }
         else
         {
-            readBuffer = ByteBuffer.allocateDirect(128 * 1024); // 128K
-            writeBuffer = ByteBuffer.allocateDirect(128 * 1024).asReadOnlyBuffer(); // 128K
+            test.length = DEFAULT_TCP_LENGTH;
+        }
+
+        // rejected as iperf3 would, before any buffer is sized by it
+        if ("udp".equals(test.protocol) && test.length > MAX_UDP_LENGTH)
+        {
+            return IE_UDP_BLOCKSIZE;
+        }
+        else if (test.length > MAX_LENGTH)
+        {
+            return IE_BLOCKSIZE;
+        }
+
+        if ("tcp".equals(test.protocol) && (test.mode == FORWARD || test.mode == REVERSE || test.mode == BIDIRECTIONAL))
+        {
+            // shared by all streams, payload is discarded
+            final int batch = Math.max(Math.min(test.batch, MAX_BATCH_SIZE / test.length), 1);
+            final int size = Math.toIntExact((long) test.length * batch);
+            readBuffer = buffers.acquire(size);
+            sharedWriteBuffer = buffers.acquire(size);
+            writeBuffer = sharedWriteBuffer.asReadOnlyBuffer();
+        }
+
+        final JsonElement verifySeed = params.get("verify_seed");
+        if (verifySeed != null && sharedWriteBuffer != null)
+        {
+            // every block repeats the pattern, so each can be checked on arrival with no per-block state
+            test.verify = true;
+            test.verifySeed = asLong(verifySeed);
+            IperfVerifier.fill(sharedWriteBuffer, test.length, test.verifySeed);
+        }
+
+        doExchangeLimitParams(params);
+        doExchangePacingParams(params);
+        if (!doExchangePayloadParams(params))
+        {
+            return IE_FILE;
         }
+        socketOptions = IperfSocketOptions.of(params);
 
-        // TODO: other params
-        test.info.senderHasRetransmits = -1;
+        // client_version, title, extra_data and congestion_used are only informational, server_affinity and
+        // skip_rx_copy are hints with no use here, payloads already repeat, there is no server text output to return,
+        // and authtoken is ignored as by an iperf3 server without authentication, as are keys from newer clients
+        final boolean sender = "tcp".equals(test.protocol) && test.mode != FORWARD;
+        test.info.senderHasRetransmits = sender && IperfTcpInfo.isAvailable() ? 1 : -1;
+
+        return IE_NONE;
     }
 
-    private void doExchangeResults()
+    private void doExchangeLimitParams(
+        JsonObject params)
     {
-        // read JSON results (4-byte length prefix)
-        ByteBuffer sizeBuf = doReadNBytes(Integer.BYTES);
-        int size = sizeBuf.getInt();
-        doReadNBytes(size); // results
+        final JsonElement time = params.get("time");
+        if (time != null)
+        {
+            test.duration = asInt(time);
+        }
 
-        Gson gson = IperfUtil.newGson();
-        String newResultsUTF8 = gson.toJson(test.info);
+        final JsonElement omit = params.get("omit");
+        if (omit != null)
+        {
+            test.omit = asInt(omit);
+        }
 
-        byte[] newResultsBytes = newResultsUTF8.getBytes(UTF_8);
+        final JsonElement num = params.get("num");
+        if (num != null)
+        {
+            test.bytesLimit = asLong(num);
+        }
 
-        controlBuffer.clear();
-        controlBuffer.putInt(newResultsBytes.length);
-        controlBuffer.put(newResultsBytes);
-        controlBuffer.flip();
-        doWriteBytes(controlBuffer);
+        final JsonElement blockcount = params.get("blockcount");
+        if (blockcount != null)
+        {
+            test.blocksLimit = asLong(blockcount);
+        }
+
+        if (test.bytesLimit != 0L || test.blocksLimit != 0L)
+        {
+            limits = new IperfLimits(test.bytesLimit, test.blocksLimit, acceptor, this::onTestLimit);
+        }
     }
 
-    private void doChangeState(
-        IperfState state)
+    private void doExchangePacingParams(
+        JsonObject params)
     {
-        controlBuffer.clear();
-        controlBuffer.put(state.value());
-        controlBuffer.flip();
+        final JsonElement bandwidth = params.get("bandwidth");
+        final JsonElement fqrate = params.get("fqrate");
+        final long bandwidthRate = bandwidth != null ? asLong(bandwidth) : 0L;
+        final long fqRate = fqrate != null ? asLong(fqrate) : 0L;
+        test.rate = bandwidthRate != 0L && fqRate != 0L ? Math.min(bandwidthRate, fqRate) : Math.max(bandwidthRate, fqRate);
 
-        doWriteBytes(controlBuffer);
+        final JsonElement pacingTimer = params.get("pacing_timer");
+        final long pacingMicros = pacingTimer != null ? asLong(pacingTimer) : DEFAULT_PACING_TIMER;
+        test.pacingBurstNanos = Math.max(MICROSECONDS.toNanos(pacingMicros), MIN_PACING_BURST);
 
-        test.state = state;
+        final JsonElement burst = params.get("burst");
+        if (burst != null && test.rate != 0L)
+        {
+            // iperf3 sends a burst of blocks back to back at each pacing tick, so let the pacer run that far ahead
+            final long burstNanos = SECONDS.toNanos(asLong(burst) * test.length * Byte.SIZE) / test.rate;
+            test.pacingBurstNanos = Math.max(test.pacingBurstNanos, burstNanos);
+        }
     }
 
-    private ByteBuffer doReadNBytes(
-        int nbytes)
+    private boolean doExchangePayloadParams(
+        JsonObject params)
     {
+        final JsonElement zerocopy = params.get("zerocopy");
+        boolean opened = true;
+
         try
         {
-            controlBuffer.clear();
-            controlBuffer.limit(nbytes);
-
-            while (channel.read(controlBuffer) != -1 && controlBuffer.hasRemaining())
+            if ("tcp".equals(test.protocol) && (test.mode == REVERSE || test.mode == BIDIRECTIONAL))
             {
-                Thread.onSpinWait();
+                if (test.file != null && !test.verify)
+                {
+                    source = FileChannel.open(test.file, READ);
+                }
+                else if (zerocopy != null && zerocopy.getAsBoolean())
+                {
+                    source = newPayload(test);
+                }
             }
+            else if ("tcp".equals(test.protocol) && test.mode == FORWARD && test.file != null && !test.verify)
+            {
+                // opened before any stream is created, so a file that cannot be written fails the test up front
+                sinks = new FileChannel[test.streams];
+                for (int index = 0; index < sinks.length; index++)
+                {
+                    sinks[index] = FileChannel.open(newSinkPath(index), CREATE, WRITE, TRUNCATE_EXISTING);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            opened = false;
+        }
 
-            // TODO: handle channel close
+        return opened;
+    }
 
-            controlBuffer.flip();
+    private Path newSinkPath(
+        int index)
+    {
+        // one file per stream, suffixed by stream id when parallel
+        return test.streams > 1
+                ? test.file.resolveSibling(String.format("%s.%d", test.file.getFileName(), streamId(index)))
+                : test.file;
+    }
 
-            return controlBuffer;
+    private static FileChannel newPayload(
+        IperfTest test) throws IOException
+    {
+        final Path path = Files.createTempFile("iperf4j-", ".payload");
+        final FileChannel payload = FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE);
+        final ByteBuffer block = ByteBuffer.allocate(test.length);
+        if (test.verify)
+        {
+            IperfVerifier.fill(block, test.length, test.verifySeed);
         }
-        catch (IOException ex)
+        while (block.hasRemaining())
         {
-            controlBuffer.clear();
-            controlBuffer.limit(1);
-            controlBuffer.put(CLIENT_TERMINATE.value());
-            controlBuffer.flip();
-            return controlBuffer;
+            payload.write(block, block.position());
         }
+        return payload;
+    }
+
+    private void doExchangeResults(
+        String resultsUTF8)
+    {
+        Gson gson = IperfUtil.newGson();
+        String newResultsUTF8 = gson.toJson(test.info);
+
+        byte[] newResultsBytes = newResultsUTF8.getBytes(UTF_8);
+
+        doEnsureOutput(Integer.BYTES + newResultsBytes.length);
+        outputBuffer.putInt(newResultsBytes.length);
+        outputBuffer.put(newResultsBytes);
+        doFlush();
     }
 
-    private void doWriteBytes(
-        ByteBuffer writeBuffer)
+    private void doChangeState(
+        IperfState state)
+    {
+        // once terminated or failed, later steps of the same decode or handoff must not revive the test
+        if (!isDone())
+        {
+            test.state = state;
+
+            doEnsureOutput(Byte.BYTES);
+            outputBuffer.put(state.value());
+            doFlush();
+        }
+    }
+
+    private void doServerError(
+        int errorCode)
+    {
+        test.state = SERVER_ERROR;
+
+        // followed by iperf3's error code and errno, which the client reads to describe the failure
+        doEnsureOutput(Byte.BYTES + Integer.BYTES * 2);
+        outputBuffer.put(SERVER_ERROR.value());
+        outputBuffer.putInt(errorCode);
+        outputBuffer.putInt(0);
+        doFlush();
+    }
+
+    private void doEnsureOutput(
+        int nbytes)
+    {
+        if (outputBuffer.remaining() < nbytes)
+        {
+            final int capacity = Math.max(outputBuffer.capacity() << 1, outputBuffer.position() + nbytes);
+            final ByteBuffer newOutputBuffer = buffers.acquire(capacity);
+            outputBuffer.flip();
+            newOutputBuffer.put(outputBuffer);
+            buffers.release(outputBuffer);
+            outputBuffer = newOutputBuffer;
+        }
+    }
+
+    private void doFlush()
     {
         try
         {
-            while (channel.write(writeBuffer) != -1 && writeBuffer.hasRemaining())
+            outputBuffer.flip();
+            channel.write(outputBuffer);
+            outputBuffer.compact();
+
+            final int interestOps = outputBuffer.position() != 0 ? OP_READ | OP_WRITE : OP_READ;
+            if (key.isValid() && key.interestOps() != interestOps)
             {
-                Thread.onSpinWait();
+                key.interestOps(interestOps);
             }
-
-            // TODO: handle channel close
-
         }
         catch (IOException ex)
         {
-            throw new RuntimeException(ex);
+            doTerminate();
         }
     }
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public final class IperfCpuUsage
+{
+    private static final Path PROC_SELF_STAT = Paths.get("/proc/self/stat");
+    private static final long USER_HZ = 100L;
+    private static final int UTIME_FIELD = 13; // zero-based after pid
+    private static final int STIME_FIELD = 14;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final long wallNanos;
+    private final long userNanos;
+    private final long systemNanos;
+    private final long[] threadIds;
+    private final long[] threadUserNanos;
+    private final long[] threadSystemNanos;
+
+    private IperfCpuUsage(
+        long[] threadIds)
+    {
+        this.wallNanos = System.nanoTime();
+        this.threadIds = threadIds;
+        this.threadUserNanos = new long[threadIds.length];
+        this.threadSystemNanos = new long[threadIds.length];
+
+        final boolean threadTimes = THREADS.isThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+        for (int i = 0; threadTimes && i < threadIds.length; i++)
+        {
+            final long cpuNanos = THREADS.getThreadCpuTime(threadIds[i]);
+            final long userNanos = THREADS.getThreadUserTime(threadIds[i]);
+            threadUserNanos[i] = Math.max(userNanos, 0L);
+            threadSystemNanos[i] = Math.max(cpuNanos - userNanos, 0L);
+        }
+
+        final long[] processNanos = sampleProcess(threadTimes);
+        this.userNanos = processNanos[0];
+        this.systemNanos = processNanos[1];
+    }
+
+    public static IperfCpuUsage sample(
+        long... threadIds)
+    {
+        return new IperfCpuUsage(threadIds);
+    }
+
+    void report(
+        IperfCpuUsage end,
+        IperfTestInfo info)
+    {
+        final long wall = end.wallNanos - wallNanos;
+
+        if (wall > 0L)
+        {
+            final double user = percent(end.userNanos - userNanos, wall);
+            final double system = percent(end.systemNanos - systemNanos, wall);
+
+            info.cpuUtilUser = user;
+            info.cpuUtilSystem = system;
+            info.cpuUtilTotal = user + system;
+
+            final JsonArray threads = new JsonArray();
+            for (int i = 0; i < threadIds.length && i < end.threadIds.length; i++)
+            {
+                final ThreadInfo thread = THREADS.getThreadInfo(threadIds[i]);
+                final JsonObject object = new JsonObject();
+                object.addProperty("thread", thread != null ? thread.getThreadName() : Long.toString(threadIds[i]));
+                object.addProperty("user", percent(end.threadUserNanos[i] - threadUserNanos[i], wall));
+                object.addProperty("system", percent(end.threadSystemNanos[i] - threadSystemNanos[i], wall));
+                threads.add(object);
+            }
+            info.cpuUtilThreads = threads;
+        }
+    }
+
+    private static double percent(
+        long cpuNanos,
+        long wallNanos)
+    {
+        // user and total thread times tick at different granularities
+        return Math.max(cpuNanos, 0L) * 100.0 / wallNanos;
+    }
+
+    private static long[] sampleProcess(
+        boolean threadTimes)
+    {
+        final long[] times = new long[2];
+
+        try
+        {
+            // fields after the parenthesized command name, which may itself contain spaces
+            final String stat = new String(Files.readAllBytes(PROC_SELF_STAT), US_ASCII);
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            times[0] = Long.parseLong(fields[UTIME_FIELD - 2]) * SECONDS.toNanos(1L) / USER_HZ;
+            times[1] = Long.parseLong(fields[STIME_FIELD - 2]) * SECONDS.toNanos(1L) / USER_HZ;
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            // not Linux, approximate the process by its live threads
+            for (long threadId : threadTimes ? THREADS.getAllThreadIds() : new long[0])
+            {
+                final long cpuNanos = THREADS.getThreadCpuTime(threadId);
+                final long userNanos = THREADS.getThreadUserTime(threadId);
+                times[0] += Math.max(userNanos, 0L);
+                times[1] += Math.max(cpuNanos - userNanos, 0L);
+            }
+        }
+
+        return times;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+public final class IperfHandshake
+{
+    static final int COOKIE_SIZE = 37; // size of ASCII UUID
+    static final long TIMEOUT_NANOS = SECONDS.toNanos(10L);
+
+    @FunctionalInterface
+    interface CookieHandler
+    {
+        void onCookie(
+            SelectionKey key,
+            SocketChannel channel,
+            String cookie,
+            long acceptNanos,
+            long sequence);
+    }
+
+    private final IperfWorker worker;
+    private final SocketChannel channel;
+    private final CookieHandler handler;
+    private final ByteBuffer cookieBuffer;
+    private final IperfTimer timeoutTimer;
+    private final long acceptNanos;
+    private final long sequence;
+
+    public IperfHandshake(
+        IperfWorker worker,
+        SocketChannel channel,
+        CookieHandler handler,
+        long sequence)
+    {
+        this.worker = worker;
+        this.channel = channel;
+        this.handler = handler;
+        this.cookieBuffer = ByteBuffer.allocate(COOKIE_SIZE);
+        this.timeoutTimer = new IperfTimer(this::close);
+        this.acceptNanos = System.nanoTime();
+        this.sequence = sequence;
+
+        // a connection that never sends its cookie would otherwise hold its socket forever
+        worker.timers().schedule(timeoutTimer, acceptNanos + TIMEOUT_NANOS);
+    }
+
+    void onReadyOps(
+        SelectionKey key)
+    {
+        assert (key.readyOps() & OP_READ) != 0;
+
+        try
+        {
+            if (channel.read(cookieBuffer) == -1)
+            {
+                close();
+            }
+            else if (!cookieBuffer.hasRemaining())
+            {
+                worker.timers().cancel(timeoutTimer);
+
+                final String cookie = new String(cookieBuffer.array(), UTF_8);
+                handler.onCookie(key, channel, cookie, acceptNanos, sequence);
+            }
+        }
+        catch (IOException ex)
+        {
+            close();
+        }
+    }
+
+    private void close()
+    {
+        worker.timers().cancel(timeoutTimer);
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ex)
+        {
+            // ignore
+        }
+    }
+}
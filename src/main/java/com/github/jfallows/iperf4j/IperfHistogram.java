@@ -0,0 +1,167 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Log-linear histogram of nanosecond values in the style of HdrHistogram, each power of two split
+ * into 64 linear sub-buckets for better than 2% precision. Recorded by a single writer with release
+ * stores, so readers on other threads never block the recording worker.
+ */
+public final class IperfHistogram
+{
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) << SUB_BUCKET_HALF_BITS;
+
+    private final AtomicLongArray counts;
+
+    private volatile long count;
+    private volatile long max;
+
+    public IperfHistogram()
+    {
+        this.counts = new AtomicLongArray(BUCKETS);
+    }
+
+    public long count()
+    {
+        return count;
+    }
+
+    public long max()
+    {
+        return max;
+    }
+
+    public long valueAtPercentile(
+        double percentile)
+    {
+        final long total = count;
+        final long target = Math.max((long) Math.ceil(percentile / 100.0 * total), 1L);
+        long value = 0L;
+
+        long seen = 0L;
+        for (int index = 0; index < BUCKETS && seen < target; index++)
+        {
+            final long bucket = counts.get(index);
+            if (bucket != 0L)
+            {
+                seen += bucket;
+                value = highestEquivalentValue(index);
+            }
+        }
+
+        return total != 0L ? Math.min(value, max) : 0L;
+    }
+
+    void record(
+        long value)
+    {
+        final int index = index(Math.max(value, 0L));
+
+        counts.lazySet(index, counts.get(index) + 1L);
+        if (value > max)
+        {
+            max = value;
+        }
+        count = count + 1L;
+    }
+
+    void add(
+        IperfHistogram other)
+    {
+        for (int index = 0; index < BUCKETS; index++)
+        {
+            final long bucket = other.counts.get(index);
+            if (bucket != 0L)
+            {
+                counts.lazySet(index, counts.get(index) + bucket);
+            }
+        }
+
+        max = Math.max(max, other.max);
+        count = count + other.count;
+    }
+
+    void reset()
+    {
+        for (int index = 0; index < BUCKETS; index++)
+        {
+            counts.lazySet(index, 0L);
+        }
+
+        max = 0L;
+        count = 0L;
+    }
+
+    JsonObject toJson(
+        String name,
+        double seconds)
+    {
+        final JsonObject object = new JsonObject();
+        object.addProperty(name, count);
+        object.addProperty(name + "_per_second", seconds > 0.0 ? count / seconds : 0.0);
+        object.addProperty("p50_us", micros(valueAtPercentile(50.0)));
+        object.addProperty("p99_us", micros(valueAtPercentile(99.0)));
+        object.addProperty("p99_9_us", micros(valueAtPercentile(99.9)));
+        object.addProperty("max_us", micros(max));
+        return object;
+    }
+
+    private static double micros(
+        long nanos)
+    {
+        return nanos / (double) MICROSECONDS.toNanos(1L);
+    }
+
+    private static int index(
+        long value)
+    {
+        final int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int index = (int) value;
+
+        if (msb >= SUB_BUCKET_BITS)
+        {
+            // values below the sub-bucket count are exact, above it each power of two has half as many buckets
+            final int shift = msb - SUB_BUCKET_BITS + 1;
+            index = (shift << SUB_BUCKET_HALF_BITS) + (int) (value >>> shift);
+        }
+
+        return index;
+    }
+
+    private static long highestEquivalentValue(
+        int index)
+    {
+        long value = index;
+
+        if (index >= SUB_BUCKET_COUNT)
+        {
+            final int shift = (index >>> SUB_BUCKET_HALF_BITS) - 1;
+            final long sub = index - ((long) shift << SUB_BUCKET_HALF_BITS);
+            value = ((sub + 1L) << shift) - 1L;
+        }
+
+        return value;
+    }
+}
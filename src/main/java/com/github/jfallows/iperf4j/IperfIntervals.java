@@ -0,0 +1,191 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+public final class IperfIntervals
+{
+    private final boolean datagram;
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] bytes;
+    private final long[] packets;
+    private final long[] errors;
+    private final double[] jitters;
+    private final long[] retransmits;
+    private final long[] sndCwnds;
+    private final long[] rtos;
+    private final boolean[] omitted;
+
+    private volatile long count;
+
+    public IperfIntervals(
+        int capacity,
+        boolean datagram)
+    {
+        this.datagram = datagram;
+        this.starts = new long[capacity];
+        this.ends = new long[capacity];
+        this.bytes = new long[capacity];
+        this.packets = new long[capacity];
+        this.errors = new long[capacity];
+        this.jitters = new double[capacity];
+        this.retransmits = new long[capacity];
+        this.sndCwnds = new long[capacity];
+        this.rtos = new long[capacity];
+        this.omitted = new boolean[capacity];
+    }
+
+    public boolean datagram()
+    {
+        return datagram;
+    }
+
+    public int capacity()
+    {
+        return starts.length;
+    }
+
+    public long count()
+    {
+        return count;
+    }
+
+    public long first()
+    {
+        return Math.max(count - starts.length, 0L);
+    }
+
+    public long start(
+        long index)
+    {
+        return starts[offset(index)];
+    }
+
+    public long end(
+        long index)
+    {
+        return ends[offset(index)];
+    }
+
+    public long bytes(
+        long index)
+    {
+        return bytes[offset(index)];
+    }
+
+    public long packets(
+        long index)
+    {
+        return packets[offset(index)];
+    }
+
+    public long errors(
+        long index)
+    {
+        return errors[offset(index)];
+    }
+
+    public double jitter(
+        long index)
+    {
+        return jitters[offset(index)];
+    }
+
+    public long retransmits(
+        long index)
+    {
+        return retransmits[offset(index)];
+    }
+
+    public long sndCwnd(
+        long index)
+    {
+        return sndCwnds[offset(index)];
+    }
+
+    public long rtoMillis(
+        long index)
+    {
+        return rtos[offset(index)];
+    }
+
+    public boolean omitted(
+        long index)
+    {
+        return omitted[offset(index)];
+    }
+
+    void record(
+        long start,
+        long end,
+        long bytes,
+        long packets,
+        long errors,
+        double jitter,
+        long retransmits,
+        long sndCwnd,
+        long rtoMillis,
+        boolean omitted)
+    {
+        final long index = count;
+        final int offset = offset(index);
+
+        this.starts[offset] = start;
+        this.ends[offset] = end;
+        this.bytes[offset] = bytes;
+        this.packets[offset] = packets;
+        this.errors[offset] = errors;
+        this.jitters[offset] = jitter;
+        this.retransmits[offset] = retransmits;
+        this.sndCwnds[offset] = sndCwnd;
+        this.rtos[offset] = rtoMillis;
+        this.omitted[offset] = omitted;
+
+        this.count = index + 1;
+    }
+
+    void extend(
+        long end,
+        long bytes,
+        long packets,
+        long errors,
+        double jitter,
+        long retransmits,
+        long sndCwnd,
+        long rtoMillis)
+    {
+        final long index = count - 1;
+        final int offset = offset(index);
+
+        this.ends[offset] = end;
+        this.bytes[offset] += bytes;
+        this.packets[offset] += packets;
+        this.errors[offset] += errors;
+        this.jitters[offset] = jitter;
+        this.retransmits[offset] += retransmits;
+        this.sndCwnds[offset] = sndCwnd;
+        this.rtos[offset] = rtoMillis;
+
+        // republish, so readers that load the count see the extended interval
+        this.count = index + 1;
+    }
+
+    private int offset(
+        long index)
+    {
+        return (int) (index % starts.length);
+    }
+}
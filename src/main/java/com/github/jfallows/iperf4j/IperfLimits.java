@@ -0,0 +1,67 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class IperfLimits
+{
+    private final long bytesLimit;
+    private final long blocksLimit;
+    private final AtomicLong bytes;
+    private final AtomicLong blocks;
+    private final AtomicBoolean reached;
+    private final IperfWorker owner;
+    private final Runnable onReached;
+
+    public IperfLimits(
+        long bytesLimit,
+        long blocksLimit,
+        IperfWorker owner,
+        Runnable onReached)
+    {
+        this.bytesLimit = bytesLimit;
+        this.blocksLimit = blocksLimit;
+        this.bytes = new AtomicLong();
+        this.blocks = new AtomicLong();
+        this.reached = new AtomicBoolean();
+        this.owner = owner;
+        this.onReached = onReached;
+    }
+
+    void onTransfer(
+        long bytesTransferred,
+        long blocksTransferred)
+    {
+        final boolean bytesReached = bytesLimit != 0 && bytes.addAndGet(bytesTransferred) >= bytesLimit;
+        final boolean blocksReached = blocksLimit != 0 && blocks.addAndGet(blocksTransferred) >= blocksLimit;
+
+        if ((bytesReached || blocksReached) && reached.compareAndSet(false, true))
+        {
+            owner.execute(onReached);
+        }
+    }
+
+    void onOmitted(
+        long bytesOmitted,
+        long blocksOmitted)
+    {
+        // each stream takes back only what it counted itself, whenever its own omit task runs
+        bytes.addAndGet(-bytesOmitted);
+        blocks.addAndGet(-blocksOmitted);
+    }
+}
@@ -0,0 +1,465 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Server, test and stream metrics, exposed as MBeans and optionally as a Prometheus {@code /metrics}
+ * endpoint.
+ * <p>
+ * Server counters are updated on the acceptor, and stream counters are read with acquire loads of the
+ * values each worker publishes, so scraping never blocks nor contends with stream I/O.
+ */
+public final class IperfMetrics implements AutoCloseable
+{
+    private static final String DOMAIN = "com.github.jfallows.iperf4j";
+
+    public interface ServerMXBean
+    {
+        long getAccepts();
+
+        long getRejected();
+
+        int getActiveTests();
+
+        long getBufferPoolAllocatedBytes();
+
+        long getBufferPoolBorrowedBytes();
+
+        long getBufferPoolAcquires();
+
+        long getBufferPoolReleases();
+
+        long getBufferPoolOverflows();
+
+        long getBufferPoolOverflowBytes();
+    }
+
+    public interface TestMXBean
+    {
+        long getId();
+
+        String getState();
+
+        String getProtocol();
+
+        long getBytes();
+
+        long getBlocks();
+
+        double getBitsPerSecond();
+
+        List<StreamMetrics> getStreams();
+    }
+
+    public static final class StreamMetrics
+    {
+        private final int id;
+        private final long bytes;
+        private final long blocks;
+        private final double bitsPerSecond;
+
+        StreamMetrics(
+            int id,
+            long bytes,
+            long blocks,
+            double bitsPerSecond)
+        {
+            this.id = id;
+            this.bytes = bytes;
+            this.blocks = blocks;
+            this.bitsPerSecond = bitsPerSecond;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        public long getBlocks()
+        {
+            return blocks;
+        }
+
+        public double getBitsPerSecond()
+        {
+            return bitsPerSecond;
+        }
+    }
+
+    private final IperfBufferPool buffers;
+    private final MBeanServer mbeans;
+    private final Map<String, TestMetrics> tests;
+    private final AtomicLong accepts;
+    private final AtomicLong rejected;
+    private final AtomicLong nextTestId;
+    private final ObjectName serverName;
+
+    private HttpServer http;
+
+    public IperfMetrics(
+        IperfBufferPool buffers)
+    {
+        this.buffers = buffers;
+        this.mbeans = ManagementFactory.getPlatformMBeanServer();
+        this.tests = new ConcurrentHashMap<>();
+        this.accepts = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.nextTestId = new AtomicLong();
+        this.serverName = register(String.format("%s:type=Server", DOMAIN), new Server());
+    }
+
+    public void bind(
+        InetSocketAddress local) throws IOException
+    {
+        http = HttpServer.create(local, 0);
+        http.createContext("/metrics", this::onMetrics);
+        http.start();
+    }
+
+    @Override
+    public void close()
+    {
+        if (http != null)
+        {
+            http.stop(0);
+        }
+
+        tests.values().forEach(t -> unregister(t.name));
+        tests.clear();
+        unregister(serverName);
+    }
+
+    void onAccepted()
+    {
+        accepts.incrementAndGet();
+    }
+
+    void onRejected()
+    {
+        rejected.incrementAndGet();
+    }
+
+    void onTestCreated(
+        String cookie,
+        IperfTest test)
+    {
+        // tests are identified by sequence, the cookie authorizes stream connections
+        final long id = nextTestId.incrementAndGet();
+        final TestMetrics metrics = new TestMetrics(id, test);
+        metrics.name = register(String.format("%s:type=Test,id=%d", DOMAIN, id), metrics);
+        tests.put(cookie, metrics);
+    }
+
+    void onTestClosed(
+        String cookie)
+    {
+        final TestMetrics test = tests.remove(cookie);
+        if (test != null)
+        {
+            unregister(test.name);
+        }
+    }
+
+    String scrape()
+    {
+        final long now = System.nanoTime();
+        final StringBuilder out = new StringBuilder();
+
+        metric(out, "iperf4j_accepts_total", "counter", "Connections accepted.");
+        sample(out, "iperf4j_accepts_total", "", accepts.get());
+        metric(out, "iperf4j_rejected_total", "counter", "Connections rejected or closed before use.");
+        sample(out, "iperf4j_rejected_total", "", rejected.get());
+        metric(out, "iperf4j_active_tests", "gauge", "Tests in progress.");
+        sample(out, "iperf4j_active_tests", "", tests.size());
+        metric(out, "iperf4j_buffer_pool_allocated_bytes", "gauge", "Direct bytes allocated by the buffer pool.");
+        sample(out, "iperf4j_buffer_pool_allocated_bytes", "", buffers.allocatedBytes());
+        metric(out, "iperf4j_buffer_pool_borrowed_bytes", "gauge", "Direct bytes borrowed from the buffer pool.");
+        sample(out, "iperf4j_buffer_pool_borrowed_bytes", "", buffers.borrowedBytes());
+        metric(out, "iperf4j_buffer_pool_acquires_total", "counter", "Buffers borrowed from the buffer pool.");
+        sample(out, "iperf4j_buffer_pool_acquires_total", "", buffers.acquires());
+        metric(out, "iperf4j_buffer_pool_releases_total", "counter", "Buffers returned to the buffer pool.");
+        sample(out, "iperf4j_buffer_pool_releases_total", "", buffers.releases());
+        metric(out, "iperf4j_buffer_pool_overflows_total", "counter", "Heap buffers handed out beyond the pool.");
+        sample(out, "iperf4j_buffer_pool_overflows_total", "", buffers.overflows());
+        metric(out, "iperf4j_buffer_pool_overflow_bytes", "gauge", "Heap bytes borrowed beyond the pool.");
+        sample(out, "iperf4j_buffer_pool_overflow_bytes", "", buffers.overflowBytes());
+
+        metric(out, "iperf4j_test_state", "gauge", "Test state, by iperf3 state name.");
+        tests.values().forEach(t -> sample(out, "iperf4j_test_state",
+                String.format("test=\"%d\",state=\"%s\"", t.id, t.test.state), 1));
+
+        metric(out, "iperf4j_stream_bytes_total", "counter", "Bytes transferred by stream, including omitted seconds.");
+        metric(out, "iperf4j_stream_blocks_total", "counter", "Blocks sent by stream, including omitted seconds.");
+        metric(out, "iperf4j_stream_bits_per_second", "gauge", "Rate of the last interval, or since start.");
+        for (TestMetrics test : tests.values())
+        {
+            for (IperfTestStreamInfo stream : test.test.info.streams)
+            {
+                final String labels = String.format("test=\"%d\",stream=\"%d\",direction=\"%s\"", test.id, stream.id,
+                        stream.sender ? "send" : "receive");
+                sample(out, "iperf4j_stream_bytes_total", labels, stream.totalBytesAcquire());
+                sample(out, "iperf4j_stream_blocks_total", labels, stream.totalBlocksAcquire());
+                sample(out, "iperf4j_stream_bits_per_second", labels, bitsPerSecond(test.test, stream, now));
+            }
+        }
+
+        return out.toString();
+    }
+
+    private void onMetrics(
+        HttpExchange exchange) throws IOException
+    {
+        final byte[] body = scrape().getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+    private ObjectName register(
+        String name,
+        Object mbean)
+    {
+        ObjectName objectName = null;
+
+        try
+        {
+            objectName = new ObjectName(name);
+            mbeans.registerMBean(mbean, objectName);
+        }
+        catch (JMException ex)
+        {
+            // already registered by another server in this process, metrics still scraped over HTTP
+            objectName = null;
+        }
+
+        return objectName;
+    }
+
+    private void unregister(
+        ObjectName name)
+    {
+        if (name != null)
+        {
+            try
+            {
+                mbeans.unregisterMBean(name);
+            }
+            catch (JMException ex)
+            {
+                // already unregistered
+            }
+        }
+    }
+
+    private static double bitsPerSecond(
+        IperfTest test,
+        IperfTestStreamInfo stream,
+        long now)
+    {
+        final IperfIntervals intervals = stream.intervals;
+        final long count = intervals != null ? intervals.count() : 0L;
+        final long startNanos = test.startNanos;
+        double rate = 0.0;
+
+        if (count != 0L)
+        {
+            final long last = count - 1;
+            final long nanos = intervals.end(last) - intervals.start(last);
+            rate = nanos > 0L ? intervals.bytes(last) * 8e9 / nanos : 0.0;
+        }
+        else if (startNanos != 0L && now > startNanos)
+        {
+            rate = stream.bytesAcquire() * 8e9 / (now - startNanos);
+        }
+
+        return rate;
+    }
+
+    private static void metric(
+        StringBuilder out,
+        String name,
+        String type,
+        String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(
+        StringBuilder out,
+        String name,
+        String labels,
+        double value)
+    {
+        out.append(name);
+        if (!labels.isEmpty())
+        {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value));
+        out.append('\n');
+    }
+
+    private final class Server implements ServerMXBean
+    {
+        @Override
+        public long getAccepts()
+        {
+            return accepts.get();
+        }
+
+        @Override
+        public long getRejected()
+        {
+            return rejected.get();
+        }
+
+        @Override
+        public int getActiveTests()
+        {
+            return tests.size();
+        }
+
+        @Override
+        public long getBufferPoolAllocatedBytes()
+        {
+            return buffers.allocatedBytes();
+        }
+
+        @Override
+        public long getBufferPoolBorrowedBytes()
+        {
+            return buffers.borrowedBytes();
+        }
+
+        @Override
+        public long getBufferPoolAcquires()
+        {
+            return buffers.acquires();
+        }
+
+        @Override
+        public long getBufferPoolReleases()
+        {
+            return buffers.releases();
+        }
+
+        @Override
+        public long getBufferPoolOverflows()
+        {
+            return buffers.overflows();
+        }
+
+        @Override
+        public long getBufferPoolOverflowBytes()
+        {
+            return buffers.overflowBytes();
+        }
+    }
+
+    private static final class TestMetrics implements TestMXBean
+    {
+        private final long id;
+        private final IperfTest test;
+
+        private ObjectName name;
+
+        TestMetrics(
+            long id,
+            IperfTest test)
+        {
+            this.id = id;
+            this.test = test;
+        }
+
+        @Override
+        public long getId()
+        {
+            return id;
+        }
+
+        @Override
+        public String getState()
+        {
+            return test.state.name();
+        }
+
+        @Override
+        public String getProtocol()
+        {
+            return test.protocol;
+        }
+
+        @Override
+        public long getBytes()
+        {
+            return test.info.streams.stream().mapToLong(IperfTestStreamInfo::bytesAcquire).sum();
+        }
+
+        @Override
+        public long getBlocks()
+        {
+            return test.info.streams.stream().mapToLong(IperfTestStreamInfo::blocksAcquire).sum();
+        }
+
+        @Override
+        public double getBitsPerSecond()
+        {
+            final long now = System.nanoTime();
+            return test.info.streams.stream().mapToDouble(s -> bitsPerSecond(test, s, now)).sum();
+        }
+
+        @Override
+        public List<StreamMetrics> getStreams()
+        {
+            final long now = System.nanoTime();
+            final List<StreamMetrics> streams = new ArrayList<>();
+            for (IperfTestStreamInfo stream : test.info.streams)
+            {
+                streams.add(new StreamMetrics(stream.id, stream.bytesAcquire(), stream.blocksAcquire(),
+                        bitsPerSecond(test, stream, now)));
+            }
+            return streams;
+        }
+    }
+}
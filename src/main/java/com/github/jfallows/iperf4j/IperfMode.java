@@ -15,25 +15,43 @@
  */
 package com.github.jfallows.iperf4j;
 
-import static java.nio.channels.SelectionKey.OP_READ;
-import static java.nio.channels.SelectionKey.OP_WRITE;
-
 public enum IperfMode
 {
-    FORWARD(OP_READ),
-    REVERSE(OP_WRITE),
-    BIDIRECTIONAL(OP_READ | OP_WRITE);
+    FORWARD(0),
+    REVERSE(1),
+    BIDIRECTIONAL(2),
+    REQUEST_RESPONSE(3),
+    CONNECTION_RATE(4);
+
+    private static final IperfMode[] MODES = IperfMode.values();
 
-    private final int interestOps;
+    private final byte value;
 
-    public int interestOps()
+    public byte value()
     {
-        return interestOps;
+        return value;
     }
 
     IperfMode(
-        int interestOps)
+        int value)
     {
-        this.interestOps = interestOps;
+        this.value = (byte)value;
+    }
+
+    public static IperfMode valueOf(
+        int value)
+    {
+        IperfMode match = null;
+
+        for (IperfMode mode : MODES)
+        {
+            if (mode.value == value)
+            {
+                match = mode;
+                break;
+            }
+        }
+
+        return match;
     }
 }
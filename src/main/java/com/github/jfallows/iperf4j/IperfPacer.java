@@ -0,0 +1,56 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class IperfPacer
+{
+    private final double nanosPerByte;
+    private final long burstNanos;
+    private final AtomicLong theoreticalTime;
+
+    public IperfPacer(
+        long bitsPerSecond,
+        long burstNanos)
+    {
+        this.nanosPerByte = SECONDS.toNanos(Byte.SIZE) / (double) bitsPerSecond;
+        this.burstNanos = burstNanos;
+        this.theoreticalTime = new AtomicLong(System.nanoTime());
+    }
+
+    public long delay(
+        long nowNanos)
+    {
+        return Math.max(theoreticalTime.get() - burstNanos - nowNanos, 0L);
+    }
+
+    public void consume(
+        long bytes,
+        long nowNanos)
+    {
+        final long cost = (long) (bytes * nanosPerByte);
+
+        // late wakeups within the burst tolerance are caught up rather than lost
+        long current;
+        do
+        {
+            current = theoreticalTime.get();
+        } while (!theoreticalTime.compareAndSet(current, Math.max(current, nowNanos - burstNanos) + cost));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.util.Collection;
+
+/**
+ * Prints the intervals every stream of a test has recorded since the last report, with a sum line when parallel.
+ * Bidirectional tests are reported per direction, with each line tagged as sending or receiving.
+ */
+final class IperfReport
+{
+    private long reported;
+
+    void printIntervals(
+        Collection<IperfStream> streams)
+    {
+        long available = streams.isEmpty() ? 0L : Long.MAX_VALUE;
+        int senders = 0;
+        for (IperfStream stream : streams)
+        {
+            final IperfIntervals intervals = stream.info.intervals;
+            available = Math.min(available, intervals.count());
+            reported = Math.max(reported, intervals.first());
+            senders += stream.info.sender ? 1 : 0;
+        }
+
+        final boolean bidirectional = senders != 0 && senders != streams.size();
+        for (; reported < available; reported++)
+        {
+            if (bidirectional)
+            {
+                printInterval(streams, reported, true, true);
+                printInterval(streams, reported, true, false);
+            }
+            else
+            {
+                printInterval(streams, reported, false, senders != 0);
+            }
+        }
+    }
+
+    static String label(
+        String id,
+        boolean bidirectional,
+        boolean sender)
+    {
+        return bidirectional ? String.format("%3s][%s", id, sender ? "TX" : "RX") : id;
+    }
+
+    private static void printInterval(
+        Collection<IperfStream> streams,
+        long index,
+        boolean bidirectional,
+        boolean sender)
+    {
+        long sumBytes = 0L;
+        long sumStart = 0L;
+        long sumEnd = 0L;
+        boolean omitted = false;
+        int count = 0;
+
+        for (IperfStream stream : streams)
+        {
+            if (stream.info.sender == sender)
+            {
+                final IperfIntervals intervals = stream.info.intervals;
+                final long start = intervals.start(index);
+                final long end = intervals.end(index);
+                final long bytes = intervals.bytes(index);
+
+                System.out.println(IperfUtil.formatInterval(label(Integer.toString(stream.info.id), bidirectional, sender),
+                        start, end, bytes, intervals.omitted(index)));
+
+                sumBytes += bytes;
+                sumStart = start;
+                sumEnd = end;
+                omitted |= intervals.omitted(index);
+                count++;
+            }
+        }
+
+        if (count > 1)
+        {
+            System.out.println(IperfUtil.formatInterval(label("SUM", bidirectional, sender), sumStart, sumEnd, sumBytes,
+                    omitted));
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static com.github.jfallows.iperf4j.IperfResultsLog.MAGIC;
+import static com.github.jfallows.iperf4j.IperfResultsLog.RECORD_TEST;
+import static com.github.jfallows.iperf4j.IperfResultsLog.SEGMENT_HEADER_SIZE;
+import static com.github.jfallows.iperf4j.IperfResultsLog.VERSION;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Streams the tests recorded by {@link IperfResultsLog} out as JSON, one test per line, or as CSV, one row
+ * per stream total and per stream interval. Segments are mapped read-only one at a time, so a log can be
+ * exported while the server is still appending to it.
+ */
+public final class IperfResultsExporter
+{
+    private static final String CSV_HEADER = "time,protocol,mode,parallel,length,stream,sender,kind,start,end,bytes," +
+            "bits_per_second,packets,errors,jitter_ms,retransmits,snd_cwnd_segments,rto_ms,omitted";
+
+    private final Path directory;
+
+    public IperfResultsExporter(
+        Path directory)
+    {
+        this.directory = directory;
+    }
+
+    public void exportJson(
+        PrintStream out) throws IOException
+    {
+        forEach(out::println);
+    }
+
+    public void exportCsv(
+        PrintStream out) throws IOException
+    {
+        out.println(CSV_HEADER);
+        forEach(test -> printCsv(out, test));
+    }
+
+    public void forEach(
+        Consumer<JsonObject> action) throws IOException
+    {
+        for (Path path : IperfResultsLog.segments(directory))
+        {
+            final ByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(path, READ))
+            {
+                segment = channel.map(READ_ONLY, 0, channel.size());
+            }
+
+            final boolean readable = segment.limit() >= SEGMENT_HEADER_SIZE && segment.getInt(0) == MAGIC &&
+                    segment.getInt(Integer.BYTES) == VERSION;
+
+            int position = SEGMENT_HEADER_SIZE;
+            for (int length = readable ? IperfResultsLog.length(segment, position) : 0; length > 0;
+                    length = IperfResultsLog.length(segment, position))
+            {
+                final ByteBuffer record = segment.duplicate();
+                record.limit(position + Integer.BYTES + length).position(position + Integer.BYTES);
+
+                if (record.get(record.position()) == RECORD_TEST)
+                {
+                    action.accept(decodeTest(record));
+                }
+                position += Integer.BYTES + length;
+            }
+        }
+    }
+
+    private static JsonObject decodeTest(
+        ByteBuffer record)
+    {
+        final JsonObject test = new JsonObject();
+        record.get();
+        test.addProperty("time", Instant.ofEpochMilli(record.getLong()).toString());
+        test.addProperty("seconds", record.getLong() / 1e9);
+        test.addProperty("protocol", record.get() == 1 ? "udp" : "tcp");
+        final IperfMode mode = IperfMode.valueOf(record.get());
+        test.addProperty("mode", mode != null ? mode.name().toLowerCase() : "unknown");
+        test.addProperty("parallel", record.getInt());
+        test.addProperty("length", record.getInt());
+        test.addProperty("duration", record.getInt());
+        test.addProperty("omit", record.getInt());
+        test.addProperty("bandwidth", record.getLong());
+        test.addProperty("num", record.getLong());
+        test.addProperty("blockcount", record.getLong());
+        test.addProperty("interval", record.getLong() / 1e9);
+        test.addProperty("cpu_util_total", record.getDouble());
+        test.addProperty("cpu_util_user", record.getDouble());
+        test.addProperty("cpu_util_system", record.getDouble());
+
+        final JsonArray streams = new JsonArray();
+        for (int count = record.getInt(); count > 0; count--)
+        {
+            streams.add(decodeStream(record));
+        }
+        test.add("streams", streams);
+
+        return test;
+    }
+
+    private static JsonObject decodeStream(
+        ByteBuffer record)
+    {
+        final JsonObject stream = new JsonObject();
+        stream.addProperty("id", record.getInt());
+        stream.addProperty("sender", record.get() == 1);
+        final boolean datagram = record.get() == 1;
+        stream.addProperty("bytes", record.getLong());
+        stream.addProperty("blocks", record.getLong());
+        stream.addProperty("retransmits", record.getInt());
+        stream.addProperty("jitter_ms", record.getDouble() * 1e3);
+        stream.addProperty("errors", record.getLong());
+        stream.addProperty("packets", record.getLong());
+        stream.addProperty("out_of_order", record.getLong());
+        stream.addProperty("max_snd_cwnd_segments", record.getLong());
+
+        final JsonArray intervals = new JsonArray();
+        for (int count = record.getInt(); count > 0; count--)
+        {
+            final double start = record.getLong() / 1e9;
+            final double end = record.getLong() / 1e9;
+            final long bytes = record.getLong();
+
+            final JsonObject interval = new JsonObject();
+            interval.addProperty("start", start);
+            interval.addProperty("end", end);
+            interval.addProperty("bytes", bytes);
+            interval.addProperty("bits_per_second", end > start ? bytes * 8.0 / (end - start) : 0.0);
+            interval.addProperty("packets", record.getLong());
+            interval.addProperty("errors", record.getLong());
+            interval.addProperty("jitter_ms", record.getDouble() * 1e3);
+            interval.addProperty("retransmits", record.getInt());
+            interval.addProperty("snd_cwnd_segments", record.getLong());
+            interval.addProperty("rto_ms", record.getInt());
+            interval.addProperty("omitted", record.get() == 1);
+            intervals.add(interval);
+        }
+        stream.addProperty("datagram", datagram);
+        stream.add("intervals", intervals);
+
+        return stream;
+    }
+
+    private static void printCsv(
+        PrintStream out,
+        JsonObject test)
+    {
+        final String prefix = String.join(",", test.get("time").getAsString(), test.get("protocol").getAsString(),
+                test.get("mode").getAsString(), test.get("parallel").getAsString(), test.get("length").getAsString());
+        final double seconds = test.get("seconds").getAsDouble();
+
+        for (JsonElement element : test.getAsJsonArray("streams"))
+        {
+            final JsonObject stream = element.getAsJsonObject();
+            final long bytes = stream.get("bytes").getAsLong();
+            final String streamPrefix = String.join(",", prefix, stream.get("id").getAsString(),
+                    stream.get("sender").getAsString());
+
+            // totals span the whole test, with the per-interval congestion columns left empty
+            out.format("%s,total,0.0,%s,%d,%s,%s,%s,%s,%s,,,false\n", streamPrefix, seconds, bytes,
+                    seconds > 0.0 ? bytes * 8.0 / seconds : 0.0, stream.get("packets").getAsString(),
+                    stream.get("errors").getAsString(), stream.get("jitter_ms").getAsString(),
+                    stream.get("retransmits").getAsString());
+
+            for (JsonElement intervalElement : stream.getAsJsonArray("intervals"))
+            {
+                final JsonObject interval = intervalElement.getAsJsonObject();
+                out.format("%s,interval,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%s\n", streamPrefix,
+                        interval.get("start").getAsString(), interval.get("end").getAsString(),
+                        interval.get("bytes").getAsString(), interval.get("bits_per_second").getAsString(),
+                        interval.get("packets").getAsString(), interval.get("errors").getAsString(),
+                        interval.get("jitter_ms").getAsString(), interval.get("retransmits").getAsString(),
+                        interval.get("snd_cwnd_segments").getAsString(), interval.get("rto_ms").getAsString(),
+                        interval.get("omitted").getAsString());
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only binary log of completed tests, written through memory mapped segments of fixed size so that
+ * results survive the client, and the server process itself, as soon as each record is appended.
+ * <p>
+ * Each segment starts with a magic number and format version, followed by records framed by their length. The
+ * length is written after the record, so a record is either complete or invisible to readers, and the zero
+ * length of the unwritten remainder marks the end of the segment. A test that does not fit in what remains
+ * of a segment starts the next one, as does every server start. Only the acceptor appends. Enumerations are
+ * written as their explicit wire values rather than ordinals, and any change to the record layout bumps
+ * the version so that readers skip segments they cannot decode.
+ */
+public final class IperfResultsLog implements AutoCloseable
+{
+    static final int MAGIC = 0x49344a52; // "I4JR"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE = Integer.BYTES * 2;
+    static final byte RECORD_TEST = 1;
+    static final Pattern SEGMENT_NAME = Pattern.compile("results-(\\d{8})\\.log");
+
+    static final int TEST_SIZE = 95;
+    static final int STREAM_SIZE = 70;
+    static final int INTERVAL_SIZE = 65;
+
+    private final Path directory;
+    private final long segmentSize;
+
+    private int segmentIndex;
+    private MappedByteBuffer segment;
+
+    public IperfResultsLog(
+        Path directory,
+        long segmentSize) throws IOException
+    {
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+
+        // never append after a record a killed server may have cut short, start the next segment instead
+        final List<Path> segments = segments(directory);
+        doRoll(segments.isEmpty() ? 0 : index(segments.get(segments.size() - 1)) + 1, 0);
+    }
+
+    void append(
+        IperfTest test,
+        long endNanos) throws IOException
+    {
+        final int size = sizeOf(test);
+        if (segment.remaining() < Integer.BYTES + size)
+        {
+            doRoll(segmentIndex + 1, size);
+        }
+
+        final MappedByteBuffer segment = this.segment;
+        final int recordAt = segment.position();
+        segment.position(recordAt + Integer.BYTES);
+
+        final IperfTestInfo info = test.info;
+        final long now = System.nanoTime();
+        segment.put(RECORD_TEST);
+        segment.putLong(System.currentTimeMillis() - NANOSECONDS.toMillis(now - test.startNanos));
+        segment.putLong(endNanos - test.startNanos);
+        segment.put((byte) ("udp".equals(test.protocol) ? 1 : 0));
+        segment.put(test.mode.value());
+        segment.putInt(test.streams);
+        segment.putInt(test.length);
+        segment.putInt(test.duration);
+        segment.putInt(test.omit);
+        segment.putLong(test.rate);
+        segment.putLong(test.bytesLimit);
+        segment.putLong(test.blocksLimit);
+        segment.putLong(test.intervalNanos);
+        segment.putDouble(info.cpuUtilTotal);
+        segment.putDouble(info.cpuUtilUser);
+        segment.putDouble(info.cpuUtilSystem);
+        segment.putInt(info.streams.size());
+
+        for (IperfTestStreamInfo stream : info.streams)
+        {
+            final IperfIntervals intervals = stream.intervals;
+            final long first = intervals != null ? intervals.first() : 0L;
+            final long count = intervals != null ? intervals.count() : 0L;
+
+            segment.putInt(stream.id);
+            segment.put((byte) (stream.sender ? 1 : 0));
+            segment.put((byte) (intervals != null && intervals.datagram() ? 1 : 0));
+            segment.putLong(stream.bytes);
+            segment.putLong(stream.blocks);
+            segment.putInt(stream.retransmits);
+            segment.putDouble(stream.jitter);
+            segment.putLong(stream.errors);
+            segment.putLong(stream.packets);
+            segment.putLong(stream.outOfOrder);
+            segment.putLong(stream.maxSndCwnd);
+            segment.putInt((int) (count - first));
+
+            for (long index = first; index < count; index++)
+            {
+                segment.putLong(intervals.start(index));
+                segment.putLong(intervals.end(index));
+                segment.putLong(intervals.bytes(index));
+                segment.putLong(intervals.packets(index));
+                segment.putLong(intervals.errors(index));
+                segment.putDouble(intervals.jitter(index));
+                segment.putInt((int) intervals.retransmits(index));
+                segment.putLong(intervals.sndCwnd(index));
+                segment.putInt((int) intervals.rtoMillis(index));
+                segment.put((byte) (intervals.omitted(index) ? 1 : 0));
+            }
+        }
+
+        assert segment.position() == recordAt + Integer.BYTES + size;
+        segment.putInt(recordAt, size);
+    }
+
+    @Override
+    public void close()
+    {
+        segment.force();
+    }
+
+    static List<Path> segments(
+        Path directory) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.filter(p -> SEGMENT_NAME.matcher(p.getFileName().toString()).matches())
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    static int index(
+        Path segment)
+    {
+        final Matcher matcher = SEGMENT_NAME.matcher(segment.getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    static int length(
+        ByteBuffer segment,
+        int position)
+    {
+        // zero where nothing has been appended yet, and a record cut short by the end of the segment is never valid
+        final int length = position + Integer.BYTES <= segment.limit() ? segment.getInt(position) : 0;
+        return length > 0 && position + Integer.BYTES + length <= segment.limit() ? length : 0;
+    }
+
+    private static int sizeOf(
+        IperfTest test)
+    {
+        int size = TEST_SIZE;
+
+        for (IperfTestStreamInfo stream : test.info.streams)
+        {
+            final IperfIntervals intervals = stream.intervals;
+            final long count = intervals != null ? intervals.count() - intervals.first() : 0L;
+            size += STREAM_SIZE + (int) count * INTERVAL_SIZE;
+        }
+
+        return size;
+    }
+
+    private void doRoll(
+        int index,
+        int recordSize) throws IOException
+    {
+        if (segment != null)
+        {
+            segment.force();
+        }
+
+        // a test larger than a segment gets a segment of its own
+        final long size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + Integer.BYTES + recordSize);
+        final Path path = directory.resolve(String.format("results-%08d.log", index));
+        try (FileChannel channel = FileChannel.open(path, CREATE_NEW, READ, WRITE))
+        {
+            segment = channel.map(READ_WRITE, 0, size);
+        }
+
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        segmentIndex = index;
+    }
+}
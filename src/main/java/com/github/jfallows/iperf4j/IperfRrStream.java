@@ -0,0 +1,151 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Echoes fixed-size transactions, in the style of netperf TCP_RR. With one transaction outstanding,
+ * the time between consecutive requests is the round trip seen by the client, so that is what the
+ * latency histogram records. As the client's sending stream it writes the first request, and then
+ * times each response from the one before it.
+ */
+public final class IperfRrStream extends IperfStream
+{
+    private final SocketChannel channel;
+    private final IperfBufferPool buffers;
+    private final ByteBuffer buffer;
+
+    private long requestNanos;
+    private long transactions;
+    private boolean responding;
+
+    public IperfRrStream(
+        IperfWorker worker,
+        IperfTestStreamInfo info,
+        SocketChannel channel,
+        IperfBufferPool buffers,
+        int length)
+    {
+        super(worker, info, channel);
+        this.channel = channel;
+        this.buffers = buffers;
+        this.buffer = buffers.acquire(length);
+        this.tcpInfo = IperfTcpInfo.of(channel);
+        this.responding = info.sender;
+        info.latency = new IperfHistogram();
+    }
+
+    @Override
+    void onClose()
+    {
+        buffers.release(buffer);
+    }
+
+    @Override
+    void onOmit()
+    {
+        super.onOmit();
+        info.latency.reset();
+        requestNanos = 0L;
+    }
+
+    @Override
+    void onReadyOps(
+        SelectionKey key)
+    {
+        try
+        {
+            final long completed = transactions;
+            long bytes = 0L;
+            long progress;
+
+            // bounded by the budget, or one request per blocking read, so tasks and timers still run
+            do
+            {
+                if (responding)
+                {
+                    progress = onWritable();
+                }
+                else
+                {
+                    progress = onReadable();
+                    bytes += Math.max(progress, 0L);
+                }
+            } while (progress > 0L && hasBudget(bytes));
+
+            if (progress == -1L)
+            {
+                close();
+            }
+
+            onTransfer(bytes, transactions - completed);
+        }
+        catch (IOException ex)
+        {
+            close();
+        }
+    }
+
+    private long onReadable() throws IOException
+    {
+        final ByteBuffer buffer = this.buffer;
+        final int bytesRead = channel.read(buffer);
+
+        if (bytesRead > 0 && !buffer.hasRemaining())
+        {
+            final long now = System.nanoTime();
+            if (requestNanos != 0L)
+            {
+                info.latency.record(now - requestNanos);
+            }
+            requestNanos = now;
+            transactions++;
+
+            buffer.flip();
+            responding = true;
+            onWritable();
+        }
+
+        return bytesRead;
+    }
+
+    private long onWritable() throws IOException
+    {
+        final ByteBuffer buffer = this.buffer;
+        final int bytesWritten = channel.write(buffer);
+        final int interestOps = buffer.hasRemaining() ? OP_WRITE : OP_READ;
+
+        if (!buffer.hasRemaining())
+        {
+            buffer.clear();
+            responding = false;
+        }
+
+        if (key != null && key.isValid() && key.interestOps() != interestOps)
+        {
+            key.interestOps(interestOps);
+        }
+
+        return bytesWritten;
+    }
+}
@@ -15,115 +15,343 @@
  */
 package com.github.jfallows.iperf4j;
 
-import static com.github.jfallows.iperf4j.IperfState.CLIENT_TERMINATE;
-import static com.github.jfallows.iperf4j.IperfState.CREATE_STREAMS;
-import static com.github.jfallows.iperf4j.IperfState.IPERF_DONE;
+import static com.github.jfallows.iperf4j.IperfState.ACCESS_DENIED;
 import static java.nio.channels.SelectionKey.OP_ACCEPT;
 import static java.nio.channels.SelectionKey.OP_READ;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Iterator;
-import java.util.Set;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class IperfServer implements AutoCloseable
 {
-    private final Selector selector;
-    private final ServerSocketChannel channel;
+    private static final int UDP_CONNECT_MSG = 0x36373839;
+    private static final int UDP_CONNECT_REPLY = 0x39383736;
+    private static final int MAX_ACCEPTS_PER_WAKEUP = 64;
 
-    private IperfTest test;
-    private IperfControl control;
+    private final IperfWorker acceptor;
+    private final IperfWorker[] acceptors;
+    private final IperfWorker[] workers;
+    private final Thread[] threads;
+    private final ServerSocketChannel[] channels;
+    private final Map<String, IperfControl> controls;
+    private final IperfBufferPool buffers;
+    private final IperfMetrics metrics;
+    private final int maxTests;
+    private final long intervalNanos;
+    private final long maxRate;
+    private final int batch;
+    private final long budget;
+    private final int backlog;
+    private final Path file;
+    private final IperfResultsLog resultsLog;
+    private final ByteBuffer datagramBuffer;
+    private final IperfEngine engine;
+    private final ThreadFactory streamThreads;
+    private final boolean virtualThreads;
+    private final boolean splitDirections;
+    private final AtomicLong accepts;
+
+    private DatagramChannel datagrams;
+    private Path unixPath;
+    private int nextWorker;
+    private int nextSender;
 
     public IperfServer() throws IOException
     {
-        this.test = new IperfTest();
-        this.selector = Selector.open();
-        this.channel = ServerSocketChannel.open();
-        channel.configureBlocking(false);
+        this(new IperfConfiguration());
+    }
+
+    public IperfServer(
+        IperfConfiguration config) throws IOException
+    {
+        // written only on the acceptor, read by the other listeners to route connection-rate transactions
+        this.controls = new ConcurrentHashMap<>();
+        this.buffers = new IperfBufferPool(config.bufferPoolCapacity);
+        this.metrics = new IperfMetrics(buffers);
+        this.maxTests = config.maxTests;
+        this.intervalNanos = config.intervalNanos;
+        this.maxRate = config.maxRate;
+        this.batch = config.batch;
+        this.budget = config.budget;
+        this.backlog = config.backlog;
+        this.file = config.file;
+        this.resultsLog = config.resultsLog != null ? new IperfResultsLog(config.resultsLog, config.resultsSegmentSize) : null;
+        this.datagramBuffer = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.nativeOrder());
+        this.engine = config.engine;
+        this.splitDirections = config.splitDirections;
+        this.accepts = new AtomicLong();
+        final ThreadFactory virtualThreads = engine == IperfEngine.THREADS ? newVirtualThreads() : null;
+        this.virtualThreads = virtualThreads != null;
+        this.streamThreads = virtualThreads != null ? virtualThreads
+                : engine == IperfEngine.THREADS ? newPlatformThreads() : null;
+        this.acceptor = new IperfWorker();
+        this.acceptors = new IperfWorker[Math.max(config.acceptors, 1)];
+        this.acceptors[0] = acceptor;
+        this.workers = new IperfWorker[engine == IperfEngine.SELECTOR ? config.workers : 0];
+        this.threads = new Thread[workers.length + acceptors.length - 1];
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i] = new IperfWorker();
+            threads[i] = newThread(workers[i], String.format("iperf4j-worker-%d", i));
+        }
+        for (int i = 1; i < acceptors.length; i++)
+        {
+            acceptors[i] = new IperfWorker();
+            threads[workers.length + i - 1] = newThread(acceptors[i], String.format("iperf4j-acceptor-%d", i));
+        }
+        this.channels = new ServerSocketChannel[acceptors.length];
     }
 
     public void bind(
         SocketAddress local) throws IOException
     {
-        channel.bind(local);
+        // a domain socket path cannot be shared, so only the acceptor listens, and there are no datagrams
+        final boolean unix = local instanceof UnixDomainSocketAddress;
+        final int listeners = unix ? 1 : channels.length;
+
+        for (int i = 0; i < listeners; i++)
+        {
+            channels[i] = unix ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+            channels[i].configureBlocking(false);
+            if (listeners > 1)
+            {
+                // kernel balances incoming connections across the listeners sharing the port
+                channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channels[i].bind(i == 0 ? local : channels[0].getLocalAddress(), backlog);
+        }
+        unixPath = unix ? ((UnixDomainSocketAddress) local).getPath() : null;
+
+        acceptor.register(channels[0], OP_ACCEPT, key -> onReadyOps(acceptor, channels[0], this::onCookie, key));
+        for (int i = 1; i < listeners; i++)
+        {
+            final IperfWorker worker = acceptors[i];
+            final ServerSocketChannel channel = channels[i];
+            final IperfHandshake.CookieHandler handler =
+                (k, child, cookie, acceptNanos, sequence) -> onHandoff(worker, k, child, cookie, acceptNanos, sequence);
+
+            // registered on the listener's own thread, as registration waits for a blocked select
+            worker.execute(() -> doRegisterListener(worker, channel, handler));
+        }
+
+        if (!unix)
+        {
+            doBindDatagrams();
+        }
+    }
+
+    public IperfBufferPool buffers()
+    {
+        return buffers;
+    }
+
+    public IperfMetrics metrics()
+    {
+        return metrics;
+    }
 
-        final SelectionKey key = channel.register(selector, OP_ACCEPT);
-        attach(key, this::onReadyOps);
+    /**
+     * Kind of thread each stream runs on with the threads engine, virtual where the runtime has them and
+     * platform otherwise, since the build targets a release before virtual threads. None with the selector.
+     */
+    public String streamThreadKind()
+    {
+        return streamThreads == null ? "none" : virtualThreads ? "virtual" : "platform";
     }
 
     public boolean isOpen()
     {
-        return selector.isOpen();
+        return acceptor.isOpen();
     }
 
     public void process() throws IOException
     {
-        final int selected = selector.select(MILLISECONDS.toMillis(500));
-        if (selected != 0)
-        {
-            final Set<SelectionKey> selectedKeys = selector.selectedKeys();
-
-            for(Iterator<SelectionKey> i = selectedKeys.iterator(); i.hasNext();)
-            {
-                SelectionKey selectedKey = i.next();
-                Consumer<SelectionKey> handler = attachment(selectedKey);
-                handler.accept(selectedKey);
-                i.remove();
-            }
-        }
+        acceptor.process(0L);
 
-        if (test.state == IPERF_DONE || test.state == CLIENT_TERMINATE)
+        for (Iterator<Map.Entry<String, IperfControl>> i = controls.entrySet().iterator(); i.hasNext();)
         {
-            if (control != null)
+            Map.Entry<String, IperfControl> entry = i.next();
+            IperfControl control = entry.getValue();
+            if (control.isDone())
             {
                 control.close();
-                control = null;
+                i.remove();
+                metrics.onTestClosed(entry.getKey());
             }
-            test = new IperfTest();
         }
     }
 
     @Override
     public void close() throws IOException
     {
-        selector.close();
+        for (IperfControl control : controls.values())
+        {
+            control.close();
+        }
+        controls.clear();
+        metrics.close();
+
+        if (resultsLog != null)
+        {
+            resultsLog.close();
+        }
+
+        if (datagrams != null)
+        {
+            datagrams.close();
+        }
+
+        for (ServerSocketChannel channel : channels)
+        {
+            if (channel != null)
+            {
+                channel.close();
+            }
+        }
+
+        if (unixPath != null)
+        {
+            // unlike a port, the socket file outlives the listener
+            Files.deleteIfExists(unixPath);
+        }
+
+        for (IperfWorker worker : acceptors)
+        {
+            worker.close();
+        }
+
+        for (IperfWorker worker : workers)
+        {
+            worker.close();
+        }
+
+        for (Thread thread : threads)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     private void onReadyOps(
+        IperfWorker worker,
+        ServerSocketChannel channel,
+        IperfHandshake.CookieHandler handler,
         SelectionKey key)
     {
         assert key.readyOps() == OP_ACCEPT;
 
         try
         {
-            final SocketChannel child = channel.accept();
-            child.configureBlocking(false);
+            // drain the backlog in batches, bounded so one wakeup cannot starve the tests on the acceptor
+            for (int i = 0; i < MAX_ACCEPTS_PER_WAKEUP; i++)
+            {
+                final SocketChannel child = channel.accept();
+                if (child == null)
+                {
+                    break;
+                }
+
+                metrics.onAccepted();
+                child.configureBlocking(false);
+
+                // numbered across all listeners, so a test's streams keep their accept order however their cookies arrive
+                final IperfHandshake handshake = new IperfHandshake(worker, child, handler, accepts.getAndIncrement());
+                worker.register(child, OP_READ, handshake::onReadyOps);
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void onCookie(
+        SelectionKey key,
+        SocketChannel child,
+        String cookie,
+        long acceptNanos,
+        long sequence)
+    {
+        try
+        {
+            final IperfControl control = controls.get(cookie);
 
             if (control == null)
             {
-                assert test.state != CREATE_STREAMS;
+                if (maxTests != 0 && controls.size() >= maxTests)
+                {
+                    child.write(ByteBuffer.wrap(new byte[] { ACCESS_DENIED.value() }));
+                    child.close();
+                    metrics.onRejected();
+                }
+                else
+                {
+                    final IperfTest newTest = new IperfTest();
+                    newTest.cookie = cookie;
+                    newTest.intervalNanos = intervalNanos;
+                    newTest.maxRate = maxRate;
+                    newTest.batch = batch;
+                    newTest.budget = budget;
+                    newTest.file = file;
+                    newTest.resultsLog = resultsLog;
+
+                    final IperfControl newControl = new IperfControl(acceptor, buffers, newTest, child);
+                    IperfWorker.attach(key, newControl::onReadyOps);
+                    controls.put(cookie, newControl);
+                    metrics.onTestCreated(cookie, newTest);
+                    newControl.start(key);
+                }
+            }
+            else if (control.canAcceptConnections())
+            {
+                key.cancel();
 
-                final IperfControl newControl = new IperfControl(test, child);
-                final SelectionKey controlKey = child.register(selector, OP_READ);
-                attach(controlKey, newControl::onReadyOps);
-                this.control = newControl;
+                final IperfWorker worker = nextConnectionWorker();
+                final IperfConnection newConnection = control.createConnection(worker, child, acceptNanos);
+                worker.execute(newConnection::register);
             }
-            else if (test.state == CREATE_STREAMS && control.canCreateStreams())
+            else if (control.canCreateStreams())
             {
-                final IperfStream newStream = control.createStream(child);
-                final int interestOps = test.mode.interestOps();
-                final SelectionKey streamKey = child.register(selector, interestOps);
-                attach(streamKey, newStream::onReadyOps);
+                key.cancel();
+                control.acceptStream(child, sequence);
+
+                // stream ids and directions follow accept order, so wait for every stream before creating any
+                for (SocketChannel accepted = control.nextAcceptedStream(); accepted != null;
+                        accepted = control.nextAcceptedStream())
+                {
+                    final IperfTestStreamInfo newStreamInfo = control.newStreamInfo();
+                    final IperfWorker worker = nextWorker(newStreamInfo.sender);
+                    final IperfStream newStream = control.createStream(worker, accepted, newStreamInfo);
+                    doRegisterStream(worker, newStream);
+                }
             }
             else
             {
                 child.close();
+                metrics.onRejected();
             }
         }
         catch (IOException ex)
@@ -132,17 +360,229 @@ public final class IperfServer implements AutoCloseable
         }
     }
 
-    private static void attach(
+    private void doRegisterListener(
+        IperfWorker worker,
+        ServerSocketChannel channel,
+        IperfHandshake.CookieHandler handler)
+    {
+        try
+        {
+            worker.register(channel, OP_ACCEPT, key -> onReadyOps(worker, channel, handler, key));
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void onHandoff(
+        IperfWorker worker,
+        SelectionKey key,
+        SocketChannel child,
+        String cookie,
+        long acceptNanos,
+        long sequence)
+    {
+        final IperfControl control = controls.get(cookie);
+
+        if (control != null && control.canAcceptConnections())
+        {
+            // connection-rate transactions are serviced by the listener that accepted them
+            control.createConnection(worker, child, acceptNanos).attach(key);
+        }
+        else
+        {
+            // tests are otherwise only touched on the acceptor, so connections are handed over
+            // once their channel has left this listener's selector on its next select
+            key.cancel();
+            worker.execute(() -> acceptor.execute(() -> doHandoff(key, child, cookie, acceptNanos, sequence)));
+        }
+    }
+
+    private void doHandoff(
         SelectionKey key,
-        Consumer<SelectionKey> handler)
+        SocketChannel child,
+        String cookie,
+        long acceptNanos,
+        long sequence)
+    {
+        try
+        {
+            // only a connection starting a new test stays on the acceptor, as its control channel,
+            // registered without interest until the new control attaches its handler
+            final SelectionKey newKey = controls.containsKey(cookie) ? key : acceptor.register(child, 0, null);
+            onCookie(newKey, child, cookie, acceptNanos, sequence);
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void onDatagramReadyOps(
+        SelectionKey key)
+    {
+        assert key.readyOps() == OP_READ;
+
+        try
+        {
+            datagramBuffer.clear();
+            final SocketAddress sender = datagrams.receive(datagramBuffer);
+            datagramBuffer.flip();
+
+            if (sender != null &&
+                datagramBuffer.remaining() == Integer.BYTES &&
+                datagramBuffer.getInt(0) == UDP_CONNECT_MSG)
+            {
+                IperfControl control = null;
+                for (IperfControl candidate : controls.values())
+                {
+                    if (candidate.canCreateStreams(sender))
+                    {
+                        control = candidate;
+                        break;
+                    }
+                }
+
+                if (control != null)
+                {
+                    // connected listener becomes the stream, replaced by a fresh listener
+                    final DatagramChannel child = datagrams;
+                    key.cancel();
+                    child.connect(sender);
+                    doBindDatagrams();
+
+                    datagramBuffer.clear();
+                    datagramBuffer.putInt(UDP_CONNECT_REPLY);
+                    datagramBuffer.flip();
+                    child.write(datagramBuffer);
+
+                    final IperfTestStreamInfo newStreamInfo = control.newStreamInfo();
+                    final IperfWorker worker = nextWorker(newStreamInfo.sender);
+                    final IperfStream newStream = control.createStream(worker, child, newStreamInfo);
+                    doRegisterStream(worker, newStream);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private void doBindDatagrams() throws IOException
     {
-        key.attach(handler);
+        final DatagramChannel newDatagrams = DatagramChannel.open();
+        newDatagrams.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        newDatagrams.bind(channels[0].getLocalAddress());
+        newDatagrams.configureBlocking(false);
+
+        acceptor.register(newDatagrams, OP_READ, this::onDatagramReadyOps);
+        this.datagrams = newDatagrams;
     }
 
-    @SuppressWarnings("unchecked")
-    private static Consumer<SelectionKey> attachment(
-        SelectionKey selectedKey)
+    private void doRegisterStream(
+        IperfWorker worker,
+        IperfStream stream)
     {
-        return (Consumer<SelectionKey>) selectedKey.attachment();
+        if (worker.isBlocking())
+        {
+            // the channel leaves the acceptor selector on its next select, only then can it block
+            acceptor.execute(() -> worker.execute(() -> stream.register()));
+            streamThreads.newThread(worker).start();
+        }
+        else
+        {
+            worker.execute(() -> stream.register());
+        }
+    }
+
+    private IperfWorker nextWorker(
+        boolean sender)
+    {
+        IperfWorker worker = acceptor;
+
+        if (engine == IperfEngine.THREADS)
+        {
+            worker = IperfWorker.blocking();
+        }
+        else if (splitDirections && workers.length > 1)
+        {
+            // receiving streams on the first half of the workers and sending streams on the rest,
+            // so one direction saturating its workers never delays the other
+            final int receivers = workers.length >> 1;
+            if (sender)
+            {
+                worker = workers[receivers + nextSender];
+                nextSender = (nextSender + 1) % (workers.length - receivers);
+            }
+            else
+            {
+                worker = workers[nextWorker % receivers];
+                nextWorker = (nextWorker + 1) % receivers;
+            }
+        }
+        else if (workers.length != 0)
+        {
+            worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+
+        return worker;
+    }
+
+    private IperfWorker nextConnectionWorker()
+    {
+        // connections are too short lived for a thread each, so always use the selector workers
+        IperfWorker worker = acceptor;
+
+        if (workers.length != 0)
+        {
+            worker = workers[nextWorker];
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+
+        return worker;
+    }
+
+    private static Thread newThread(
+        Runnable worker,
+        String name)
+    {
+        final Thread thread = new Thread(worker, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static ThreadFactory newVirtualThreads()
+    {
+        ThreadFactory factory;
+
+        try
+        {
+            // Thread.ofVirtual().name(...).factory(), looked up so the same build runs before virtual threads
+            final Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "iperf4j-stream-", 0L);
+            factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            factory = null;
+        }
+
+        return factory;
+    }
+
+    private static ThreadFactory newPlatformThreads()
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return r ->
+        {
+            final Thread thread = new Thread(r, String.format("iperf4j-stream-%d", count.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 }
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Socket options requested by the client params, applied to each stream channel as it is accepted.
+ * <p>
+ * The JDK cannot set the TCP maximum segment size or congestion control algorithm, so tests asking for
+ * {@code MSS} or {@code congestion} are rejected by the control, and {@code congestion_used} reports the
+ * Linux default algorithm actually in use.
+ */
+final class IperfSocketOptions
+{
+    private static final Path TCP_CONGESTION_CONTROL = Paths.get("/proc/sys/net/ipv4/tcp_congestion_control");
+
+    private final int window;
+    private final boolean nodelay;
+    private final int tos;
+
+    private IperfSocketOptions(
+        int window,
+        boolean nodelay,
+        int tos)
+    {
+        this.window = window;
+        this.nodelay = nodelay;
+        this.tos = tos;
+    }
+
+    static IperfSocketOptions of(
+        JsonObject params)
+    {
+        final JsonElement window = params.get("window");
+        final JsonElement nodelay = params.get("nodelay");
+        final JsonElement tos = params.get("TOS");
+
+        return new IperfSocketOptions(
+                window != null ? IperfUtil.asInt(window) : 0,
+                nodelay != null && nodelay.getAsBoolean(),
+                tos != null ? IperfUtil.asInt(tos) : 0);
+    }
+
+    void apply(
+        NetworkChannel channel,
+        IperfTestInfo info)
+    {
+        if (window > 0)
+        {
+            setOption(channel, StandardSocketOptions.SO_RCVBUF, window);
+            setOption(channel, StandardSocketOptions.SO_SNDBUF, window);
+            info.sockBufsize = window;
+        }
+
+        if (tos != 0)
+        {
+            setOption(channel, StandardSocketOptions.IP_TOS, tos);
+        }
+
+        if (channel instanceof SocketChannel && isInet(channel))
+        {
+            if (nodelay)
+            {
+                setOption(channel, StandardSocketOptions.TCP_NODELAY, true);
+            }
+
+            if (info.congestionUsed == null)
+            {
+                info.congestionUsed = congestionUsed();
+            }
+        }
+
+        // kernel may round or double the requested sizes, so report what is in effect
+        info.sndbufActual = getOption(channel, StandardSocketOptions.SO_SNDBUF, 0);
+        info.rcvbufActual = getOption(channel, StandardSocketOptions.SO_RCVBUF, 0);
+        info.tos = getOption(channel, StandardSocketOptions.IP_TOS, 0);
+    }
+
+    private static boolean isInet(
+        NetworkChannel channel)
+    {
+        boolean inet = false;
+
+        try
+        {
+            inet = channel.getLocalAddress() instanceof InetSocketAddress;
+        }
+        catch (IOException ex)
+        {
+            // closed, nothing to apply
+        }
+
+        return inet;
+    }
+
+    private String congestionUsed()
+    {
+        String used = null;
+
+        try
+        {
+            used = new String(Files.readAllBytes(TCP_CONGESTION_CONTROL), US_ASCII).trim();
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            // not Linux, algorithm unknown
+        }
+
+        return used;
+    }
+
+    private static <T> void setOption(
+        NetworkChannel channel,
+        SocketOption<T> option,
+        T value)
+    {
+        try
+        {
+            channel.setOption(option, value);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            // unsupported by this channel or platform, reported values show the effect
+        }
+    }
+
+    private static <T> T getOption(
+        NetworkChannel channel,
+        SocketOption<T> option,
+        T defaultValue)
+    {
+        T value = defaultValue;
+
+        try
+        {
+            value = channel.getOption(option);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            // unsupported by this channel or platform
+        }
+
+        return value;
+    }
+}
@@ -17,76 +17,342 @@ package com.github.jfallows.iperf4j;
 
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class IperfStream implements AutoCloseable
+public abstract class IperfStream implements AutoCloseable
 {
-    private final IperfTestStreamInfo info;
-    private final SocketChannel channel;
-    private final ByteBuffer readBuffer;
-    private final ByteBuffer writeBuffer;
+    final IperfWorker worker;
+    final IperfTestStreamInfo info;
 
-    public IperfStream(
+    private final SelectableChannel channel;
+    private final IperfTimer intervalTimer;
+    private final IperfTimer paceTimer;
+    private final AtomicBoolean closed;
+
+    SelectionKey key;
+    IperfLimits limits;
+    IperfPacer pacer;
+    IperfTcpInfo tcpInfo;
+    long budget;
+
+    private long startNanos;
+    private long intervalNanos;
+    private long intervalStart;
+    private long intervalDeadline;
+    private long lastBytes;
+    private long lastPackets;
+    private long lastErrors;
+    private long lastRetransmits;
+    private long retransmitsBase;
+    private boolean omitting;
+
+    IperfStream(
+        IperfWorker worker,
         IperfTestStreamInfo info,
-        SocketChannel channel,
-        ByteBuffer readBuffer,
-        ByteBuffer writeBuffer)
+        SelectableChannel channel)
     {
+        this.worker = worker;
         this.info = info;
         this.channel = channel;
-        this.readBuffer = readBuffer;
-        this.writeBuffer = writeBuffer.duplicate().clear();
+        this.intervalTimer = new IperfTimer(this::onIntervalTimer);
+        this.paceTimer = new IperfTimer(this::onPaceTimer);
+        this.closed = new AtomicBoolean();
     }
 
-    @Override
-    public void close()
+    int interestOps()
+    {
+        // each stream carries one direction, so bidirectional tests never trade reads for writes
+        return info.sender ? OP_WRITE : OP_READ;
+    }
+
+    void register()
     {
         try
         {
-            channel.close();
+            key = worker.register(channel, interestOps(), this::onReadyOps);
         }
         catch (IOException ex)
         {
-            // ignore
+            close();
         }
     }
 
-    void onReadyOps(
-        SelectionKey key)
+    void quiesce(
+        boolean close,
+        Runnable completion)
     {
-        final int readyOps = key.isValid() ? key.readyOps() : 0;
+        worker.execute(() ->
+        {
+            onStop();
 
-        try
+            if (close)
+            {
+                close();
+            }
+            else if (key != null)
+            {
+                key.cancel();
+            }
+            completion.run();
+        });
+
+        if (worker.isBlocking())
         {
-            if ((readyOps & OP_READ) != 0)
+            // stream thread may be blocked on a peer that stopped reading or writing,
+            // so close now to unblock it, as iperf3 closes streams at test end
+            close();
+        }
+    }
+
+    void start(
+        long startNanos,
+        long intervalNanos,
+        boolean omitting)
+    {
+        worker.execute(() -> onStart(startNanos, intervalNanos, omitting));
+    }
+
+    void omit()
+    {
+        worker.execute(this::onOmit);
+    }
+
+    void onOmit()
+    {
+        if (info.intervals != null)
+        {
+            // fold a short omitted remainder into the omit window instead of reporting it
+            final long now = System.nanoTime();
+            if (now - intervalStart >= intervalNanos >> 1)
             {
-                final ByteBuffer buffer = this.readBuffer;
-                do
-                {
-                    buffer.clear();
-                    info.bytes += Math.max(channel.read(buffer), 0L);
-                } while (!buffer.hasRemaining());
+                doSnapshot(now, false);
             }
+            intervalStart = now;
+        }
+
+        if (tcpInfo != null)
+        {
+            doSampleTcpInfo();
+            retransmitsBase = tcpInfo.retransmits;
+            info.retransmits = 0;
+        }
+
+        if (limits != null)
+        {
+            // -n and -k count from the end of the omit window, as the results do
+            limits.onOmitted(info.bytes, info.blocks);
+        }
+
+        info.reset();
+        info.errors = 0L;
+        info.packets = 0L;
+        info.outOfOrder = 0L;
+        info.verifiedBlocks = 0L;
+        info.verifyNanos = 0L;
+
+        lastBytes = 0L;
+        lastPackets = 0L;
+        lastErrors = 0L;
+        lastRetransmits = 0L;
+        omitting = false;
+    }
+
+    void onTransfer(
+        long bytes,
+        long blocks)
+    {
+        info.transferred(bytes, blocks);
+
+        if (limits != null && bytes != 0L)
+        {
+            limits.onTransfer(bytes, blocks);
+        }
+    }
+
+    private void onStart(
+        long startNanos,
+        long intervalNanos,
+        boolean omitting)
+    {
+        this.startNanos = startNanos;
+        this.intervalNanos = intervalNanos;
+        this.intervalStart = startNanos;
+        this.omitting = omitting;
+
+        if (info.intervals != null && channel.isOpen())
+        {
+            intervalDeadline = startNanos + intervalNanos;
+            worker.timers().schedule(intervalTimer, intervalDeadline);
+        }
+    }
+
+    private void onStop()
+    {
+        worker.timers().cancel(intervalTimer);
+        worker.timers().cancel(paceTimer);
+
+        final long now = System.nanoTime();
+        final IperfIntervals intervals = info.intervals;
+        final long count = intervals != null ? intervals.count() : 0L;
+
+        // as iperf3, a final interval shorter than a tenth of the period is not reported on its own,
+        // but folded into the previous interval so interval sums still add up to the totals
+        final boolean fold = count != 0L && now - intervalStart < intervalNanos / 10 && intervals.omitted(count - 1) == omitting;
+
+        if (intervals != null && (fold || now - intervalStart >= MILLISECONDS.toNanos(1L)))
+        {
+            doSnapshot(now, fold);
+        }
+        else if (tcpInfo != null)
+        {
+            doSampleTcpInfo();
+        }
+    }
+
+    private void onIntervalTimer()
+    {
+        if (channel.isOpen())
+        {
+            doSnapshot(System.nanoTime(), false);
+
+            intervalDeadline += intervalNanos;
+            worker.timers().schedule(intervalTimer, intervalDeadline);
+        }
+    }
+
+    private void doSnapshot(
+        long now,
+        boolean fold)
+    {
+        final IperfTestStreamInfo info = this.info;
+
+        if (tcpInfo != null)
+        {
+            doSampleTcpInfo();
+        }
+
+        if (fold)
+        {
+            info.intervals.extend(now - startNanos, info.bytes - lastBytes, info.packets - lastPackets,
+                    info.errors - lastErrors, info.jitter, info.retransmits - lastRetransmits, info.sndCwnd, info.rtoMillis);
+        }
+        else
+        {
+            info.intervals.record(intervalStart - startNanos, now - startNanos, info.bytes - lastBytes,
+                    info.packets - lastPackets, info.errors - lastErrors, info.jitter,
+                    info.retransmits - lastRetransmits, info.sndCwnd, info.rtoMillis, omitting);
+        }
+
+        intervalStart = now;
+        lastBytes = info.bytes;
+        lastPackets = info.packets;
+        lastErrors = info.errors;
+        lastRetransmits = info.retransmits;
+    }
 
-            if ((readyOps & OP_WRITE) != 0)
+    private void doSampleTcpInfo()
+    {
+        // reads the kernel table, so only sampled per interval and never per transfer
+        if (tcpInfo.sample(worker.tcpTable()))
+        {
+            info.retransmits = (int) (tcpInfo.retransmits - retransmitsBase);
+            info.sndCwnd = tcpInfo.sndCwnd;
+            info.maxSndCwnd = Math.max(info.maxSndCwnd, tcpInfo.sndCwnd);
+            info.rtoMillis = tcpInfo.rtoMillis;
+        }
+    }
+
+    boolean hasBudget(
+        long bytes)
+    {
+        // a stream left readable is selected again on the next pass, after its siblings, tasks and timers,
+        // while blocking streams transfer once per pass for the same reason
+        return bytes < budget && !worker.isBlocking();
+    }
+
+    boolean canWrite()
+    {
+        boolean canWrite = true;
+
+        if (pacer != null)
+        {
+            final long now = System.nanoTime();
+            final long delay = pacer.delay(now);
+
+            if (delay != 0L)
             {
-                final ByteBuffer buffer = this.writeBuffer;
-                info.bytes += channel.write(buffer);
-
-                if (!buffer.hasRemaining())
-                {
-                    buffer.clear();
-                    info.blocks++;
-                }
+                key.interestOps(key.interestOps() & ~OP_WRITE);
+                worker.timers().schedule(paceTimer, now + delay);
+                canWrite = false;
             }
         }
-        catch (IOException ex)
+
+        return canWrite;
+    }
+
+    void onWritten(
+        long bytes)
+    {
+        if (pacer != null)
+        {
+            pacer.consume(bytes, System.nanoTime());
+        }
+    }
+
+    private void onPaceTimer()
+    {
+        if (key != null && key.isValid())
+        {
+            key.interestOps(key.interestOps() | OP_WRITE);
+        }
+    }
+
+    void close(
+        Runnable completion)
+    {
+        // completes on the worker, only once the stream is no longer reading into or writing from shared buffers
+        worker.execute(() ->
         {
             close();
+            completion.run();
+        });
+
+        if (worker.isBlocking())
+        {
+            // stream thread may be blocked in a read or write, so close now to unblock it
+            close();
         }
     }
+
+    @Override
+    public void close()
+    {
+        // closed on the worker at end of stream and by the control when the test is done
+        if (closed.compareAndSet(false, true))
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                // ignore
+            }
+
+            // buffers are released on the worker, as a stream thread may still be using them when closed elsewhere
+            worker.execute(this::onClose);
+        }
+    }
+
+    void onClose()
+    {
+    }
+
+    abstract void onReadyOps(
+        SelectionKey key);
 }
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static com.github.jfallows.iperf4j.IperfTcpTable.PROC_NET_TCP;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+/**
+ * Samples kernel TCP state for one connection from the Linux {@code /proc/net/tcp} tables.
+ * <p>
+ * The tables expose the retransmit timeout count, congestion window and retransmit timeout, but not
+ * the total retransmitted segments nor the smoothed RTT, so retransmits accumulate the increases
+ * observed between samples and undercount fast retransmits recovered before a sample is taken.
+ */
+public final class IperfTcpInfo
+{
+    private static final long USER_HZ = 100L;
+
+    private static final int RETRANSMITS_FIELD = 6;
+    private static final int RTO_FIELD = 12;
+    private static final int SND_CWND_FIELD = 15;
+    private static final int SSTHRESH_FIELD = 16;
+
+    private static final boolean AVAILABLE = Files.isReadable(PROC_NET_TCP);
+
+    private final String entry4;
+    private final String entry6;
+
+    private Boolean ipv6;
+    private long lastRetransmits;
+
+    long retransmits;
+    long sndCwnd;
+    long ssthresh;
+    long rtoMillis;
+
+    private IperfTcpInfo(
+        InetSocketAddress local,
+        InetSocketAddress remote)
+    {
+        this.entry4 = entry(local, remote, false);
+        this.entry6 = entry(local, remote, true);
+    }
+
+    public static boolean isAvailable()
+    {
+        return AVAILABLE;
+    }
+
+    public static IperfTcpInfo of(
+        SocketChannel channel)
+    {
+        IperfTcpInfo info = null;
+
+        if (AVAILABLE)
+        {
+            try
+            {
+                final InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+                final InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                if (local != null && remote != null)
+                {
+                    info = new IperfTcpInfo(local, remote);
+                }
+            }
+            catch (IOException | ClassCastException ex)
+            {
+                // fail soft, stream reports no tcp info
+            }
+        }
+
+        return info;
+    }
+
+    /**
+     * Refreshes this sample from the worker's copy of the tables, returning {@code false} when the connection
+     * is no longer listed.
+     */
+    boolean sample(
+        IperfTcpTable tables)
+    {
+        String line = null;
+
+        if (ipv6 != null)
+        {
+            line = tables.line(ipv6, ipv6 ? entry6 : entry4);
+        }
+        else if (entry6 != null && (line = tables.line(true, entry6)) != null)
+        {
+            ipv6 = Boolean.TRUE;
+        }
+        else if (entry4 != null && (line = tables.line(false, entry4)) != null)
+        {
+            ipv6 = Boolean.FALSE;
+        }
+
+        if (line != null)
+        {
+            try
+            {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length > SSTHRESH_FIELD)
+                {
+                    final long timeouts = Long.parseLong(fields[RETRANSMITS_FIELD], 16);
+                    retransmits += Math.max(timeouts - lastRetransmits, 0L);
+                    lastRetransmits = timeouts;
+                    rtoMillis = Long.parseLong(fields[RTO_FIELD]) * 1000L / USER_HZ;
+                    sndCwnd = Long.parseLong(fields[SND_CWND_FIELD]);
+                    ssthresh = Long.parseLong(fields[SSTHRESH_FIELD]);
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                // fail soft, keep the last sample
+            }
+        }
+
+        return line != null;
+    }
+
+    private static String entry(
+        InetSocketAddress local,
+        InetSocketAddress remote,
+        boolean ipv6)
+    {
+        final String localEntry = entry(local.getAddress(), local.getPort(), ipv6);
+        final String remoteEntry = entry(remote.getAddress(), remote.getPort(), ipv6);
+        return localEntry != null && remoteEntry != null ? localEntry + " " + remoteEntry : null;
+    }
+
+    private static String entry(
+        InetAddress address,
+        int port,
+        boolean ipv6)
+    {
+        byte[] bytes = address.getAddress();
+
+        if (ipv6 && bytes.length == 4)
+        {
+            // dual stack sockets list IPv4 peers as IPv4-mapped IPv6 addresses
+            final byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xff;
+            mapped[11] = (byte) 0xff;
+            System.arraycopy(bytes, 0, mapped, 12, 4);
+            bytes = mapped;
+        }
+
+        String entry = null;
+
+        if (bytes.length == (ipv6 ? 16 : 4))
+        {
+            // each 32-bit word of the address is printed in host byte order
+            final ByteBuffer words = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+            final StringBuilder builder = new StringBuilder();
+            while (words.hasRemaining())
+            {
+                builder.append(String.format("%08X", words.getInt()));
+            }
+            entry = builder.append(String.format(":%04X", port)).toString();
+        }
+
+        return entry;
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+public final class IperfTcpStream extends IperfStream
+{
+    private final SocketChannel channel;
+    private final IperfBufferPool buffers;
+    private final ByteBuffer ownReadBuffer;
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer[] readSlices;
+    private final ByteBuffer[] writeSlices;
+    private final FileChannel source;
+    private final FileChannel sink;
+    private final IperfVerifier verifier;
+    private final int length;
+
+    private long sourcePosition;
+    private long sinkPosition;
+    private long blockOffset;
+    private int writeIndex;
+
+    public IperfTcpStream(
+        IperfWorker worker,
+        IperfTestStreamInfo info,
+        SocketChannel channel,
+        ByteBuffer readBuffer,
+        ByteBuffer writeBuffer)
+    {
+        this(worker, info, channel, null, readBuffer, writeBuffer, writeBuffer.capacity(), null, null, null);
+    }
+
+    public IperfTcpStream(
+        IperfWorker worker,
+        IperfTestStreamInfo info,
+        SocketChannel channel,
+        IperfBufferPool buffers,
+        ByteBuffer readBuffer,
+        ByteBuffer writeBuffer,
+        int length,
+        FileChannel source,
+        FileChannel sink,
+        IperfVerifier verifier)
+    {
+        super(worker, info, channel);
+        this.channel = channel;
+        this.buffers = buffers;
+        // received data is written to the sink or verified, so cannot share the test read buffer
+        this.ownReadBuffer = sink != null ? buffers.acquire(length)
+                : verifier != null ? buffers.acquire(readBuffer.capacity()) : null;
+        this.readBuffer = (ownReadBuffer != null ? ownReadBuffer : readBuffer).duplicate().clear();
+        this.writeBuffer = writeBuffer.duplicate().clear();
+        this.source = source;
+        this.sink = sink;
+        this.verifier = verifier;
+        this.length = length;
+
+        // buffers spanning several blocks are read and written as one vector of block-sized slices
+        final boolean vectored = writeBuffer.capacity() >= length << 1;
+        this.readSlices = vectored && sink == null ? slices(this.readBuffer, length) : null;
+        this.writeSlices = vectored && source == null ? slices(this.writeBuffer, length) : null;
+        this.tcpInfo = IperfTcpInfo.of(channel);
+    }
+
+    @Override
+    void onClose()
+    {
+        if (sink != null)
+        {
+            try
+            {
+                sink.close();
+            }
+            catch (IOException ex)
+            {
+                // ignore
+            }
+        }
+
+        if (ownReadBuffer != null)
+        {
+            buffers.release(ownReadBuffer);
+        }
+    }
+
+    @Override
+    void onReadyOps(
+        SelectionKey key)
+    {
+        final int readyOps = key.isValid() ? key.readyOps() : 0;
+
+        try
+        {
+            long bytes = 0L;
+            long blocks = 0L;
+
+            if ((readyOps & OP_READ) != 0)
+            {
+                bytes += sink != null ? onReadableToFile() : readSlices != null ? onReadableVectored() : onReadable();
+            }
+
+            if ((readyOps & OP_WRITE) != 0 && canWrite())
+            {
+                final long bytesWritten = source != null ? onWritableFromFile()
+                        : writeSlices != null ? onWritableVectored() : onWritable();
+                final long blockBytes = blockOffset + bytesWritten;
+
+                bytes += bytesWritten;
+                blocks += blockBytes / length;
+                blockOffset = blockBytes % length;
+                onWritten(bytesWritten);
+            }
+
+            onTransfer(bytes, blocks);
+        }
+        catch (IOException ex)
+        {
+            close();
+        }
+    }
+
+    private long onReadable() throws IOException
+    {
+        final ByteBuffer buffer = this.readBuffer;
+        long bytes = 0L;
+        int bytesRead;
+        boolean filled;
+        do
+        {
+            buffer.clear();
+            bytesRead = channel.read(buffer);
+            bytes += Math.max(bytesRead, 0L);
+            filled = !buffer.hasRemaining();
+
+            if (verifier != null)
+            {
+                verifier.verify(buffer.flip());
+            }
+        } while (filled && hasBudget(bytes));
+
+        if (bytesRead == -1)
+        {
+            close();
+        }
+
+        return bytes;
+    }
+
+    private long onReadableVectored() throws IOException
+    {
+        final ByteBuffer[] slices = this.readSlices;
+        final long capacity = (long) slices.length * length;
+        long bytes = 0L;
+        long bytesRead;
+        do
+        {
+            for (ByteBuffer slice : slices)
+            {
+                slice.clear();
+            }
+            bytesRead = channel.read(slices);
+            bytes += Math.max(bytesRead, 0L);
+
+            if (verifier != null)
+            {
+                for (ByteBuffer slice : slices)
+                {
+                    verifier.verify(slice.flip());
+                }
+            }
+        } while (bytesRead == capacity && hasBudget(bytes));
+
+        if (bytesRead == -1L)
+        {
+            close();
+        }
+
+        return bytes;
+    }
+
+    private long onReadableToFile() throws IOException
+    {
+        long bytesRead = sink.transferFrom(channel, sinkPosition, length);
+
+        if (bytesRead == 0L)
+        {
+            // readable but nothing transferred, either end of stream or data arrived since
+            final ByteBuffer buffer = readBuffer;
+            buffer.clear();
+            bytesRead = channel.read(buffer);
+
+            if (bytesRead == -1L)
+            {
+                bytesRead = 0L;
+                close();
+            }
+            else
+            {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    sink.write(buffer, sinkPosition + buffer.position());
+                }
+            }
+        }
+
+        sinkPosition += bytesRead;
+
+        return bytesRead;
+    }
+
+    private long onWritable() throws IOException
+    {
+        final ByteBuffer buffer = this.writeBuffer;
+        final int bytesWritten = channel.write(buffer);
+
+        if (!buffer.hasRemaining())
+        {
+            buffer.clear();
+        }
+
+        return bytesWritten;
+    }
+
+    private long onWritableVectored() throws IOException
+    {
+        final ByteBuffer[] slices = this.writeSlices;
+        final long bytesWritten = channel.write(slices, writeIndex, slices.length - writeIndex);
+
+        while (writeIndex < slices.length && !slices[writeIndex].hasRemaining())
+        {
+            writeIndex++;
+        }
+
+        if (writeIndex == slices.length)
+        {
+            for (ByteBuffer slice : slices)
+            {
+                slice.clear();
+            }
+            writeIndex = 0;
+        }
+
+        return bytesWritten;
+    }
+
+    private long onWritableFromFile() throws IOException
+    {
+        final long size = source.size();
+
+        if (sourcePosition >= size)
+        {
+            sourcePosition = 0L;
+        }
+
+        final long bytesWritten = source.transferTo(sourcePosition, Math.min(size - sourcePosition, length), channel);
+        sourcePosition += bytesWritten;
+
+        return bytesWritten;
+    }
+
+    private static ByteBuffer[] slices(
+        ByteBuffer buffer,
+        int length)
+    {
+        final ByteBuffer[] slices = new ByteBuffer[buffer.capacity() / length];
+        for (int i = 0; i < slices.length; i++)
+        {
+            buffer.limit((i + 1) * length).position(i * length);
+            slices[i] = buffer.slice();
+        }
+        buffer.clear();
+        return slices;
+    }
+}
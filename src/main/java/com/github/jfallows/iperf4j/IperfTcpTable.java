@@ -0,0 +1,108 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recent copy of the Linux {@code /proc/net/tcp} tables, indexed by local and remote address and port.
+ * <p>
+ * Owned by one worker, so the streams it samples at the same interval deadline share a single read of each
+ * table instead of scanning it once per stream.
+ */
+final class IperfTcpTable
+{
+    static final Path PROC_NET_TCP = Paths.get("/proc/net/tcp");
+    static final Path PROC_NET_TCP6 = Paths.get("/proc/net/tcp6");
+
+    private static final long MAX_AGE_NANOS = MILLISECONDS.toNanos(10L);
+
+    private final Map<String, String> lines4;
+    private final Map<String, String> lines6;
+
+    private long readNanos4;
+    private long readNanos6;
+    private boolean read4;
+    private boolean read6;
+
+    IperfTcpTable()
+    {
+        this.lines4 = new HashMap<>();
+        this.lines6 = new HashMap<>();
+    }
+
+    /**
+     * Returns the table line for the connection, as {@code local remote} in table format, or {@code null}
+     * when it is not listed.
+     */
+    String line(
+        boolean ipv6,
+        String entry)
+    {
+        final long now = System.nanoTime();
+
+        if (ipv6 && (!read6 || now - readNanos6 > MAX_AGE_NANOS))
+        {
+            read(PROC_NET_TCP6, lines6);
+            readNanos6 = now;
+            read6 = true;
+        }
+        else if (!ipv6 && (!read4 || now - readNanos4 > MAX_AGE_NANOS))
+        {
+            read(PROC_NET_TCP, lines4);
+            readNanos4 = now;
+            read4 = true;
+        }
+
+        return (ipv6 ? lines6 : lines4).get(entry);
+    }
+
+    private static void read(
+        Path table,
+        Map<String, String> lines)
+    {
+        lines.clear();
+
+        try (BufferedReader reader = Files.newBufferedReader(table, US_ASCII))
+        {
+            // skip the header, each line then starts with its slot, followed by the local and remote addresses
+            reader.readLine();
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+            {
+                final int local = line.indexOf(':') + 1;
+                final int localEnd = local > 0 ? line.indexOf(' ', local + 1) : -1;
+                final int remoteEnd = localEnd > 0 ? line.indexOf(' ', localEnd + 1) : -1;
+                if (remoteEnd > 0)
+                {
+                    lines.put(line.substring(local + 1, remoteEnd), line);
+                }
+            }
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            // fail soft, connections read as not listed
+        }
+    }
+}
@@ -17,14 +17,33 @@ package com.github.jfallows.iperf4j;
 
 import static com.github.jfallows.iperf4j.IperfState.IPERF_START;
 
+import java.nio.file.Path;
+
 public final class IperfTest
 {
     final IperfTestInfo info = new IperfTestInfo();
 
     volatile IperfState state = IPERF_START;
+    volatile long startNanos;
 
     String cookie;
     String protocol;
     IperfMode mode;
     int streams;
+    int length;
+    int batch;
+    long budget;
+    boolean udpCounters64;
+    int duration;
+    int omit;
+    long bytesLimit;
+    long blocksLimit;
+    long intervalNanos;
+    long rate;
+    long maxRate;
+    long pacingBurstNanos;
+    boolean verify;
+    long verifySeed;
+    Path file;
+    IperfResultsLog resultsLog;
 }
@@ -16,9 +16,10 @@
 package com.github.jfallows.iperf4j;
 
 import java.lang.reflect.Type;
-import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializationContext;
@@ -26,12 +27,22 @@ import com.google.gson.JsonSerializer;
 
 public final class IperfTestInfo
 {
-    int cpuUtilTotal;
-    int cpuUtilUser;
-    int cpuUtilSystem;
+    double cpuUtilTotal;
+    double cpuUtilUser;
+    double cpuUtilSystem;
+    JsonArray cpuUtilThreads;
     int senderHasRetransmits;
+    int sockBufsize;
+    int sndbufActual;
+    int rcvbufActual;
+    int tos;
+    String congestionUsed;
+    IperfHistogram latency;
+    double latencySeconds;
+    IperfHistogram connections;
 
-    final Set<IperfTestStreamInfo> streams = new LinkedHashSet<>();
+    // added on the acceptor, iterated by metrics readers
+    final Set<IperfTestStreamInfo> streams = new CopyOnWriteArraySet<>();
 
     public static JsonSerializer<IperfTestInfo> newJsonSerializer()
     {
@@ -45,8 +56,156 @@ public final class IperfTestInfo
         object.add("cpu_util_total", context.serialize(src.cpuUtilTotal));
         object.add("cpu_util_user", context.serialize(src.cpuUtilUser));
         object.add("cpu_util_system", context.serialize(src.cpuUtilSystem));
+        if (src.cpuUtilThreads != null)
+        {
+            object.add("cpu_util_threads", src.cpuUtilThreads);
+        }
         object.add("sender_has_retransmits", context.serialize(src.senderHasRetransmits));
+        object.add("sock_bufsize", context.serialize(src.sockBufsize));
+        object.add("sndbuf_actual", context.serialize(src.sndbufActual));
+        object.add("rcvbuf_actual", context.serialize(src.rcvbufActual));
+        object.add("tos", context.serialize(src.tos));
+        if (src.congestionUsed != null)
+        {
+            object.add("congestion_used", context.serialize(src.congestionUsed));
+        }
+        if (src.latency != null)
+        {
+            object.add("latency", src.latency.toJson("transactions", src.latencySeconds));
+        }
+        if (src.connections != null)
+        {
+            // latency is from accept to response, covering the handshake wait and the transaction
+            object.add("connections", src.connections.toJson("connections", src.latencySeconds));
+        }
+        if (src.streams.size() > 1)
+        {
+            final boolean forward = src.streams.iterator().next().sender;
+            object.addProperty("fairness", fairness(src.streams, forward));
+            if (src.streams.stream().anyMatch(s -> s.sender != forward))
+            {
+                object.addProperty("fairness_bidir_reverse", fairness(src.streams, !forward));
+            }
+        }
         object.add("streams", context.serialize(src.streams));
+        if (!src.streams.isEmpty() && src.streams.iterator().next().intervals != null)
+        {
+            object.add("intervals", serializeIntervals(src));
+        }
         return object;
     }
+
+    /**
+     * Jain's fairness index of the bytes transferred by the streams in one direction, from 1/n when one stream
+     * took everything to 1 when all streams transferred the same.
+     */
+    static double fairness(
+        Iterable<IperfTestStreamInfo> streams,
+        boolean sender)
+    {
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        int count = 0;
+
+        for (IperfTestStreamInfo stream : streams)
+        {
+            if (stream.sender == sender)
+            {
+                final double bytes = stream.bytes;
+                sum += bytes;
+                sumOfSquares += bytes * bytes;
+                count++;
+            }
+        }
+
+        return sumOfSquares > 0.0 ? sum * sum / (count * sumOfSquares) : 1.0;
+    }
+
+    private static JsonArray serializeIntervals(
+        IperfTestInfo src)
+    {
+        long first = 0L;
+        long count = Long.MAX_VALUE;
+        for (IperfTestStreamInfo stream : src.streams)
+        {
+            first = Math.max(first, stream.intervals.first());
+            count = Math.min(count, stream.intervals.count());
+        }
+
+        // as iperf3, bidirectional tests sum the direction of the first stream and report the reverse apart
+        final boolean forward = src.streams.iterator().next().sender;
+        final boolean bidirectional = src.streams.stream().anyMatch(s -> s.sender != forward);
+
+        final JsonArray array = new JsonArray();
+        for (long index = first; index < count; index++)
+        {
+            final JsonArray streams = new JsonArray();
+            final long[] sumBytes = new long[2];
+            long sumStart = 0L;
+            long sumEnd = 0L;
+            final boolean[] omitted = new boolean[2];
+
+            for (IperfTestStreamInfo stream : src.streams)
+            {
+                final IperfIntervals intervals = stream.intervals;
+                final long start = intervals.start(index);
+                final long end = intervals.end(index);
+                final long bytes = intervals.bytes(index);
+
+                final JsonObject interval = serializeInterval(start, end, bytes, intervals.omitted(index));
+                interval.addProperty("socket", stream.id);
+                interval.addProperty("sender", stream.sender);
+                if (intervals.datagram())
+                {
+                    interval.addProperty("jitter_ms", intervals.jitter(index) * 1e3);
+                    interval.addProperty("lost_packets", intervals.errors(index));
+                    interval.addProperty("packets", intervals.packets(index));
+                }
+                else if (intervals.sndCwnd(index) != 0L)
+                {
+                    interval.addProperty("retransmits", intervals.retransmits(index));
+                    interval.addProperty("snd_cwnd_segments", intervals.sndCwnd(index));
+                    interval.addProperty("rto_ms", intervals.rtoMillis(index));
+                }
+                streams.add(interval);
+
+                final int direction = stream.sender == forward ? 0 : 1;
+                sumBytes[direction] += bytes;
+                sumStart = start;
+                sumEnd = end;
+                omitted[direction] |= intervals.omitted(index);
+            }
+
+            final JsonObject interval = new JsonObject();
+            interval.add("streams", streams);
+            interval.add("sum", serializeInterval(sumStart, sumEnd, sumBytes[0], omitted[0]));
+            if (bidirectional)
+            {
+                interval.add("sum_bidir_reverse", serializeInterval(sumStart, sumEnd, sumBytes[1], omitted[1]));
+            }
+            array.add(interval);
+        }
+
+        return array;
+    }
+
+    private static JsonObject serializeInterval(
+        long startNanos,
+        long endNanos,
+        long bytes,
+        boolean omitted)
+    {
+        final double start = startNanos / 1e9;
+        final double end = endNanos / 1e9;
+        final double seconds = end - start;
+
+        final JsonObject interval = new JsonObject();
+        interval.addProperty("start", start);
+        interval.addProperty("end", end);
+        interval.addProperty("seconds", seconds);
+        interval.addProperty("bytes", bytes);
+        interval.addProperty("bits_per_second", seconds > 0.0 ? bytes * 8.0 / seconds : 0.0);
+        interval.addProperty("omitted", omitted);
+        return interval;
+    }
 }
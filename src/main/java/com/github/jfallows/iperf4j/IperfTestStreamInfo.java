@@ -15,6 +15,8 @@
  */
 package com.github.jfallows.iperf4j;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Type;
 
 import com.google.gson.JsonElement;
@@ -24,13 +26,89 @@ import com.google.gson.JsonSerializer;
 
 public final class IperfTestStreamInfo
 {
+    private static final VarHandle BYTES;
+    private static final VarHandle BLOCKS;
+    private static final VarHandle TOTAL_BYTES;
+    private static final VarHandle TOTAL_BLOCKS;
+
+    static
+    {
+        try
+        {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            BYTES = lookup.findVarHandle(IperfTestStreamInfo.class, "bytes", long.class);
+            BLOCKS = lookup.findVarHandle(IperfTestStreamInfo.class, "blocks", long.class);
+            TOTAL_BYTES = lookup.findVarHandle(IperfTestStreamInfo.class, "totalBytes", long.class);
+            TOTAL_BLOCKS = lookup.findVarHandle(IperfTestStreamInfo.class, "totalBlocks", long.class);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
     int id;
+    boolean sender;
     long bytes;
     long blocks;
+    long totalBytes;
+    long totalBlocks;
     int retransmits;
-    int jitter;
-    int errors;
-    int packets;
+    double jitter;
+    long errors;
+    long packets;
+    long outOfOrder;
+    long sndCwnd;
+    long maxSndCwnd;
+    long rtoMillis;
+    boolean verifying;
+    long verifiedBlocks;
+    long verifyNanos;
+
+    IperfIntervals intervals;
+    IperfHistogram latency;
+    double latencySeconds;
+
+    /**
+     * Counts transferred bytes and blocks on the stream's worker, publishing them with release stores
+     * for metrics readers so that the single writer never contends with them. The totals include the
+     * omitted seconds that {@link #reset()} discards, so they only ever increase.
+     */
+    void transferred(
+        long bytes,
+        long blocks)
+    {
+        BYTES.setRelease(this, this.bytes + bytes);
+        BLOCKS.setRelease(this, this.blocks + blocks);
+        TOTAL_BYTES.setRelease(this, this.totalBytes + bytes);
+        TOTAL_BLOCKS.setRelease(this, this.totalBlocks + blocks);
+    }
+
+    void reset()
+    {
+        BYTES.setRelease(this, 0L);
+        BLOCKS.setRelease(this, 0L);
+    }
+
+    long bytesAcquire()
+    {
+        return (long) BYTES.getAcquire(this);
+    }
+
+    long blocksAcquire()
+    {
+        return (long) BLOCKS.getAcquire(this);
+    }
+
+    long totalBytesAcquire()
+    {
+        return (long) TOTAL_BYTES.getAcquire(this);
+    }
+
+    long totalBlocksAcquire()
+    {
+        return (long) TOTAL_BLOCKS.getAcquire(this);
+    }
 
     public static JsonSerializer<IperfTestStreamInfo> newJsonSerializer()
     {
@@ -42,11 +120,41 @@ public final class IperfTestStreamInfo
     {
         JsonObject object = new JsonObject();
         object.add("id", context.serialize(src.id));
+        // iperf3 reports the direction as a number, telling apart the halves of a bidirectional test
+        object.add("sender", context.serialize(src.sender ? 1 : 0));
         object.add("bytes", context.serialize(src.bytes));
         object.add("retransmits", context.serialize(src.retransmits));
         object.add("jitter", context.serialize(src.jitter));
         object.add("errors", context.serialize(src.errors));
         object.add("packets", context.serialize(src.packets));
+        object.add("out_of_order", context.serialize(src.outOfOrder));
+        if (src.maxSndCwnd != 0L)
+        {
+            // kernel reports the congestion window in segments, not bytes
+            object.add("max_snd_cwnd_segments", context.serialize(src.maxSndCwnd));
+            object.add("rto_ms", context.serialize(src.rtoMillis));
+        }
+        if (src.latency != null)
+        {
+            object.add("latency", src.latency.toJson("transactions", src.latencySeconds));
+        }
+        if (src.verifying)
+        {
+            object.add("verification", serializeVerification(src));
+        }
+        return object;
+    }
+
+    private static JsonObject serializeVerification(
+        IperfTestStreamInfo src)
+    {
+        // checksum rate over the bytes received, so the share of stream time spent verifying is bytes over rate
+        final double seconds = src.verifyNanos / 1e9;
+        final JsonObject object = new JsonObject();
+        object.addProperty("blocks", src.verifiedBlocks);
+        object.addProperty("corrupted", src.errors);
+        object.addProperty("seconds", seconds);
+        object.addProperty("bits_per_second", seconds > 0.0 ? src.bytes * 8.0 / seconds : 0.0);
         return object;
     }
 }
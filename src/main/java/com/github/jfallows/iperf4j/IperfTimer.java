@@ -0,0 +1,39 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+public final class IperfTimer
+{
+    final Runnable action;
+
+    long deadlineTick;
+    IperfTimer prev;
+    IperfTimer next;
+    IperfTimer expiredNext;
+    boolean scheduled;
+    boolean expiring;
+
+    public IperfTimer(
+        Runnable action)
+    {
+        this.action = action;
+    }
+
+    public boolean isScheduled()
+    {
+        return scheduled;
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+public final class IperfTimerWheel
+{
+    public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final long tickNanos;
+    private final IperfTimer[] buckets;
+    private final int mask;
+
+    private long currentTick;
+    private int count;
+    private long wakeTick;
+    private boolean wakeStale;
+
+    public IperfTimerWheel(
+        long tickNanos,
+        int ticksPerWheel,
+        long nowNanos)
+    {
+        assert Integer.bitCount(ticksPerWheel) == 1;
+
+        this.tickNanos = tickNanos;
+        this.buckets = new IperfTimer[ticksPerWheel];
+        this.mask = ticksPerWheel - 1;
+        this.currentTick = nowNanos / tickNanos;
+    }
+
+    public void schedule(
+        IperfTimer timer,
+        long deadlineNanos)
+    {
+        cancel(timer);
+
+        final long deadlineTick = Math.max(ceilTick(deadlineNanos), currentTick);
+        final int bucket = (int) (deadlineTick & mask);
+
+        timer.deadlineTick = deadlineTick;
+        timer.prev = null;
+        timer.next = buckets[bucket];
+        if (timer.next != null)
+        {
+            timer.next.prev = timer;
+        }
+        buckets[bucket] = timer;
+        timer.scheduled = true;
+        count++;
+
+        if (count == 1)
+        {
+            wakeTick = deadlineTick;
+            wakeStale = false;
+        }
+        else if (!wakeStale)
+        {
+            wakeTick = Math.min(wakeTick, deadlineTick);
+        }
+    }
+
+    public void cancel(
+        IperfTimer timer)
+    {
+        timer.expiring = false;
+
+        if (timer.scheduled)
+        {
+            if (timer.prev != null)
+            {
+                timer.prev.next = timer.next;
+            }
+            else
+            {
+                buckets[(int) (timer.deadlineTick & mask)] = timer.next;
+            }
+
+            if (timer.next != null)
+            {
+                timer.next.prev = timer.prev;
+            }
+
+            timer.prev = null;
+            timer.next = null;
+            timer.scheduled = false;
+            count--;
+
+            // only the earliest timer moves the wakeup, found again when next asked for
+            wakeStale |= timer.deadlineTick == wakeTick;
+        }
+    }
+
+    public long nextDeadline()
+    {
+        long deadline = NO_DEADLINE;
+
+        if (count != 0)
+        {
+            // called before every select or park, so the wheel is only walked after the earliest timer
+            // is cancelled or expires, not on each wakeup
+            if (wakeStale)
+            {
+                wakeTick = findWakeTick();
+                wakeStale = false;
+            }
+
+            deadline = wakeTick * tickNanos;
+        }
+
+        return deadline;
+    }
+
+    public int expire(
+        long nowNanos)
+    {
+        final long targetTick = nowNanos / tickNanos;
+        int expired = 0;
+
+        if (count == 0)
+        {
+            currentTick = Math.max(currentTick, targetTick + 1);
+        }
+        else if (targetTick >= currentTick)
+        {
+            final long ticks = Math.min(targetTick - currentTick + 1, buckets.length);
+            IperfTimer expiredHead = null;
+
+            for (long tick = currentTick; tick < currentTick + ticks; tick++)
+            {
+                IperfTimer timer = buckets[(int) (tick & mask)];
+                while (timer != null)
+                {
+                    final IperfTimer next = timer.next;
+                    if (timer.deadlineTick <= targetTick)
+                    {
+                        cancel(timer);
+                        timer.expiring = true;
+                        timer.expiredNext = expiredHead;
+                        expiredHead = timer;
+                    }
+                    timer = next;
+                }
+            }
+
+            currentTick = targetTick + 1;
+            wakeStale |= wakeTick <= targetTick;
+
+            // actions may cancel or reschedule any timer, including those still expiring
+            while (expiredHead != null)
+            {
+                final IperfTimer timer = expiredHead;
+                expiredHead = timer.expiredNext;
+                timer.expiredNext = null;
+
+                if (timer.expiring)
+                {
+                    timer.expiring = false;
+                    timer.action.run();
+                    expired++;
+                }
+            }
+        }
+
+        return expired;
+    }
+
+    private long findWakeTick()
+    {
+        // timers beyond one revolution wake the owner at the end of the revolution
+        long wake = currentTick + buckets.length;
+
+        for (long tick = currentTick; tick < wake; tick++)
+        {
+            for (IperfTimer timer = buckets[(int) (tick & mask)]; timer != null; timer = timer.next)
+            {
+                if (timer.deadlineTick == tick)
+                {
+                    wake = tick;
+                    break;
+                }
+            }
+        }
+
+        return wake;
+    }
+
+    private long ceilTick(
+        long nanos)
+    {
+        return (nanos + tickNanos - 1) / tickNanos;
+    }
+}
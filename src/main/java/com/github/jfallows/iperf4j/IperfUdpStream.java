@@ -0,0 +1,216 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+public final class IperfUdpStream extends IperfStream
+{
+    private static final int HEADER_SEC_OFFSET = 0;
+    private static final int HEADER_USEC_OFFSET = HEADER_SEC_OFFSET + Integer.BYTES;
+    private static final int HEADER_PCOUNT_OFFSET = HEADER_USEC_OFFSET + Integer.BYTES;
+
+    private static final int MAX_DATAGRAMS_PER_WRITE = 64;
+
+    private final DatagramChannel channel;
+    private final IperfBufferPool buffers;
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer writeBuffer;
+    private final boolean counters64;
+    private final int headerSize;
+    private final long epochMicros;
+
+    private long packetCount;
+    private long packetBase;
+    private long prevTransit;
+    private boolean hasTransit;
+    private double jitter;
+
+    public IperfUdpStream(
+        IperfWorker worker,
+        IperfTestStreamInfo info,
+        DatagramChannel channel,
+        IperfBufferPool buffers,
+        int length,
+        boolean counters64)
+    {
+        super(worker, info, channel);
+        this.channel = channel;
+        this.buffers = buffers;
+        this.counters64 = counters64;
+        this.headerSize = HEADER_PCOUNT_OFFSET + (counters64 ? Long.BYTES : Integer.BYTES);
+        this.readBuffer = buffers.acquire(length);
+        this.writeBuffer = buffers.acquire(Math.max(length, headerSize));
+        this.epochMicros = MILLISECONDS.toMicros(System.currentTimeMillis()) - NANOSECONDS.toMicros(System.nanoTime());
+    }
+
+    @Override
+    void onReadyOps(
+        SelectionKey key)
+    {
+        final int readyOps = key.readyOps();
+
+        try
+        {
+            if ((readyOps & OP_READ) != 0)
+            {
+                onReadable();
+            }
+
+            if ((readyOps & OP_WRITE) != 0)
+            {
+                onWritable();
+            }
+        }
+        catch (IOException ex)
+        {
+            close();
+        }
+    }
+
+    @Override
+    void onClose()
+    {
+        buffers.release(readBuffer);
+        buffers.release(writeBuffer);
+    }
+
+    @Override
+    void onOmit()
+    {
+        super.onOmit();
+        packetBase = packetCount;
+    }
+
+    private void onReadable() throws IOException
+    {
+        final ByteBuffer buffer = this.readBuffer;
+        long bytes = 0L;
+
+        // drain until empty or out of budget, so tasks, timers and sibling streams still run
+        for (int bytesRead = receive(buffer); bytesRead > 0; bytesRead = hasBudget(bytes) ? receive(buffer) : 0)
+        {
+            bytes += bytesRead;
+
+            if (bytesRead >= headerSize)
+            {
+                final long sentMicros = SECONDS.toMicros(buffer.getInt(HEADER_SEC_OFFSET) & 0xffff_ffffL) +
+                        (buffer.getInt(HEADER_USEC_OFFSET) & 0xffff_ffffL);
+                final long pcount = counters64 ? buffer.getLong(HEADER_PCOUNT_OFFSET)
+                                               : buffer.getInt(HEADER_PCOUNT_OFFSET) & 0xffff_ffffL;
+
+                onPacket(pcount, currentMicros() - sentMicros);
+            }
+        }
+
+        onTransfer(bytes, 0L);
+    }
+
+    private void onPacket(
+        long pcount,
+        long transit)
+    {
+        if (pcount >= packetCount + 1)
+        {
+            if (pcount > packetCount + 1)
+            {
+                info.errors += (pcount - 1) - packetCount;
+            }
+            packetCount = pcount;
+        }
+        else
+        {
+            info.outOfOrder++;
+            if (info.errors > 0)
+            {
+                info.errors--;
+            }
+        }
+
+        // RFC 1889 interarrival jitter, skipping the first packet without a previous transit
+        if (hasTransit)
+        {
+            final long delta = Math.abs(transit - prevTransit);
+            jitter += (delta - jitter) / 16.0;
+            info.jitter = jitter / SECONDS.toMicros(1);
+        }
+        prevTransit = transit;
+        hasTransit = true;
+
+        info.packets = packetCount - packetBase;
+    }
+
+    private void onWritable() throws IOException
+    {
+        final ByteBuffer buffer = this.writeBuffer;
+        long bytes = 0L;
+        long blocks = 0L;
+
+        for (int i = 0; i < MAX_DATAGRAMS_PER_WRITE && canWrite(); i++)
+        {
+            final long nowMicros = currentMicros();
+            final long pcount = packetCount + 1;
+
+            buffer.clear();
+            buffer.putInt(HEADER_SEC_OFFSET, (int) MICROSECONDS.toSeconds(nowMicros));
+            buffer.putInt(HEADER_USEC_OFFSET, (int) (nowMicros % SECONDS.toMicros(1)));
+            if (counters64)
+            {
+                buffer.putLong(HEADER_PCOUNT_OFFSET, pcount);
+            }
+            else
+            {
+                buffer.putInt(HEADER_PCOUNT_OFFSET, (int) pcount);
+            }
+
+            final int bytesWritten = channel.write(buffer);
+            if (bytesWritten == 0)
+            {
+                break;
+            }
+
+            onWritten(bytesWritten);
+            packetCount = pcount;
+            bytes += bytesWritten;
+            blocks++;
+        }
+
+        info.packets = packetCount - packetBase;
+        onTransfer(bytes, blocks);
+    }
+
+    private int receive(
+        ByteBuffer buffer) throws IOException
+    {
+        buffer.clear();
+        return channel.read(buffer);
+    }
+
+    private long currentMicros()
+    {
+        return epochMicros + NANOSECONDS.toMicros(System.nanoTime());
+    }
+}
@@ -17,6 +17,7 @@ package com.github.jfallows.iperf4j;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 
 public final class IperfUtil
 {
@@ -28,6 +29,61 @@ public final class IperfUtil
             .create();
     }
 
+    public static int asInt(
+        JsonElement element)
+    {
+        // gson narrows out of range numbers silently, so a fraction or overflow throws ArithmeticException instead
+        return element.getAsBigDecimal().intValueExact();
+    }
+
+    public static long asLong(
+        JsonElement element)
+    {
+        return element.getAsBigDecimal().longValueExact();
+    }
+
+    public static String formatInterval(
+        String id,
+        long startNanos,
+        long endNanos,
+        long bytes,
+        boolean omitted)
+    {
+        final double start = startNanos / 1e9;
+        final double end = endNanos / 1e9;
+        final double seconds = end - start;
+        final double bitsPerSecond = seconds > 0.0 ? bytes * 8.0 / seconds : 0.0;
+
+        return String.format("[%3s] %6.2f-%-6.2f sec  %s  %s%s", id, start, end,
+                formatUnits(bytes, 1024.0, "Bytes"), formatUnits(bitsPerSecond, 1000.0, "bits/sec"),
+                omitted ? "  (omitted)" : "");
+    }
+
+    public static String formatBytes(
+        long bytes)
+    {
+        return formatUnits(bytes, 1024.0, "Bytes");
+    }
+
+    private static String formatUnits(
+        double value,
+        double base,
+        String suffix)
+    {
+        final String[] prefixes = { " ", "K", "M", "G", "T" };
+
+        int prefix = 0;
+        double scaled = value;
+        while (scaled >= base && prefix < prefixes.length - 1)
+        {
+            scaled /= base;
+            prefix++;
+        }
+
+        final String format = scaled < 9.995 ? "%4.2f %s%s" : scaled < 99.95 ? "%4.1f %s%s" : "%4.0f %s%s";
+        return String.format(format, scaled, prefixes[prefix], suffix);
+    }
+
     private IperfUtil()
     {
     }
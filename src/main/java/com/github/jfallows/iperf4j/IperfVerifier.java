@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Checks received blocks against the seeded pattern every sender repeats in each block, one CRC32C per block
+ * however the reads split it. Owned by the receiving stream, so only ever used on its worker.
+ */
+final class IperfVerifier
+{
+    private final IperfTestStreamInfo info;
+    private final CRC32C crc;
+    private final long expected;
+    private final int length;
+
+    private int offset;
+
+    IperfVerifier(
+        IperfTestStreamInfo info,
+        int length,
+        long seed)
+    {
+        this.info = info;
+        this.crc = new CRC32C();
+        this.length = length;
+        this.expected = checksum(pattern(length, seed));
+        info.verifying = true;
+    }
+
+    void verify(
+        ByteBuffer buffer)
+    {
+        final long start = System.nanoTime();
+        final int limit = buffer.limit();
+
+        while (buffer.hasRemaining())
+        {
+            final int size = Math.min(buffer.remaining(), length - offset);
+            buffer.limit(buffer.position() + size);
+            crc.update(buffer);
+            buffer.limit(limit);
+            offset += size;
+
+            if (offset == length)
+            {
+                if (crc.getValue() != expected)
+                {
+                    info.errors++;
+                }
+                info.verifiedBlocks++;
+                crc.reset();
+                offset = 0;
+            }
+        }
+
+        info.verifyNanos += System.nanoTime() - start;
+    }
+
+    static void fill(
+        ByteBuffer buffer,
+        int length,
+        long seed)
+    {
+        final byte[] block = pattern(length, seed);
+
+        buffer.clear();
+        while (buffer.remaining() >= length)
+        {
+            buffer.put(block);
+        }
+        buffer.clear();
+    }
+
+    private static byte[] pattern(
+        int length,
+        long seed)
+    {
+        // xorshift64*, deterministic for the seed and never all zeros, unlike the default payload
+        final byte[] block = new byte[length];
+        final ByteBuffer buffer = ByteBuffer.wrap(block);
+        long state = seed != 0L ? seed : 1L;
+
+        while (buffer.hasRemaining())
+        {
+            state ^= state >>> 12;
+            state ^= state << 25;
+            state ^= state >>> 27;
+            final long value = state * 0x2545_f491_4f6c_dd1dL;
+
+            if (buffer.remaining() >= Long.BYTES)
+            {
+                buffer.putLong(value);
+            }
+            else
+            {
+                buffer.put((byte) value);
+            }
+        }
+
+        return block;
+    }
+
+    private static long checksum(
+        byte[] block)
+    {
+        final CRC32C crc = new CRC32C();
+        crc.update(block);
+        return crc.getValue();
+    }
+}
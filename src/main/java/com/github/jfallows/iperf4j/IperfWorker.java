@@ -0,0 +1,305 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+public final class IperfWorker implements Runnable, AutoCloseable
+{
+    private static final long TICK_NANOS = MILLISECONDS.toNanos(1L);
+    private static final int TICKS_PER_WHEEL = 1024;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    private final IperfTimerWheel timers;
+
+    private volatile long threadId;
+    private volatile Thread thread;
+    private volatile boolean closed;
+    private volatile boolean terminated;
+    private IperfBlockingKey blockingKey;
+    private IperfTcpTable tcpTable;
+
+    public IperfWorker() throws IOException
+    {
+        this(Selector.open());
+    }
+
+    private IperfWorker(
+        Selector selector)
+    {
+        this.selector = selector;
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new IperfTimerWheel(TICK_NANOS, TICKS_PER_WHEEL, System.nanoTime());
+    }
+
+    /**
+     * Creates a worker that services a single channel in blocking mode on its own thread, running
+     * until that channel is closed or its key is cancelled.
+     */
+    public static IperfWorker blocking()
+    {
+        return new IperfWorker(null);
+    }
+
+    public boolean isBlocking()
+    {
+        return selector == null;
+    }
+
+    public IperfTimerWheel timers()
+    {
+        return timers;
+    }
+
+    IperfTcpTable tcpTable()
+    {
+        // only read by the streams sampled on this worker, so created on first use
+        if (tcpTable == null)
+        {
+            tcpTable = new IperfTcpTable();
+        }
+        return tcpTable;
+    }
+
+    public long threadId()
+    {
+        return threadId;
+    }
+
+    public boolean isOpen()
+    {
+        return selector != null ? selector.isOpen()
+                : !closed && (blockingKey == null || blockingKey.isValid() || !tasks.isEmpty());
+    }
+
+    public void execute(
+        Runnable task)
+    {
+        tasks.offer(task);
+
+        if (selector != null)
+        {
+            selector.wakeup();
+        }
+        else if (terminated)
+        {
+            // blocking thread has finished, so no longer races with the caller
+            doRunTasks();
+        }
+        else
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public SelectionKey register(
+        SelectableChannel channel,
+        int interestOps,
+        Consumer<SelectionKey> handler) throws IOException
+    {
+        SelectionKey key;
+
+        if (selector != null)
+        {
+            key = channel.register(selector, interestOps);
+        }
+        else
+        {
+            assert blockingKey == null;
+            channel.configureBlocking(true);
+            key = blockingKey = new IperfBlockingKey(channel, interestOps);
+        }
+
+        attach(key, handler);
+        return key;
+    }
+
+    public void process(
+        long timeout) throws IOException
+    {
+        final Thread currentThread = Thread.currentThread();
+        if (thread != currentThread)
+        {
+            thread = currentThread;
+            threadId = currentThread.getId();
+        }
+
+        if (selector != null)
+        {
+            doSelect(timeout);
+        }
+        else
+        {
+            doBlock();
+        }
+    }
+
+    private void doSelect(
+        long timeout) throws IOException
+    {
+        final int selected = select(timeout);
+
+        doRunTasks();
+
+        if (selected != 0)
+        {
+            final Set<SelectionKey> selectedKeys = selector.selectedKeys();
+
+            for (Iterator<SelectionKey> i = selectedKeys.iterator(); i.hasNext();)
+            {
+                SelectionKey selectedKey = i.next();
+                if (selectedKey.isValid())
+                {
+                    Consumer<SelectionKey> handler = attachment(selectedKey);
+                    handler.accept(selectedKey);
+                }
+                i.remove();
+            }
+        }
+
+        timers.expire(System.nanoTime());
+    }
+
+    private void doBlock() throws IOException
+    {
+        doRunTasks();
+
+        timers.expire(System.nanoTime());
+
+        final IperfBlockingKey key = blockingKey;
+        final int readyOps = key != null ? key.readyOps() : 0;
+
+        if (readyOps != 0)
+        {
+            final Consumer<SelectionKey> handler = attachment(key);
+            handler.accept(key);
+        }
+        else if (tasks.isEmpty() && isOpen())
+        {
+            // paced or not yet registered, wait for the next timer or task
+            final long deadline = timers.nextDeadline();
+            if (deadline == IperfTimerWheel.NO_DEADLINE)
+            {
+                LockSupport.park(this);
+            }
+            else
+            {
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+            }
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (isOpen())
+            {
+                process(0L);
+            }
+        }
+        catch (ClosedSelectorException | IOException ex)
+        {
+            // closed
+        }
+        finally
+        {
+            if (selector == null)
+            {
+                terminated = true;
+                doRunTasks();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (selector != null)
+        {
+            selector.close();
+        }
+        else
+        {
+            closed = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void doRunTasks()
+    {
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll())
+        {
+            task.run();
+        }
+    }
+
+    private int select(
+        long timeout) throws IOException
+    {
+        final long deadline = timers.nextDeadline();
+        int selected;
+
+        if (deadline == IperfTimerWheel.NO_DEADLINE)
+        {
+            selected = selector.select(timeout);
+        }
+        else
+        {
+            final long delay = NANOSECONDS.toMillis(deadline - System.nanoTime() + MILLISECONDS.toNanos(1L) - 1L);
+
+            if (delay <= 0L)
+            {
+                selected = selector.selectNow();
+            }
+            else
+            {
+                selected = selector.select(timeout != 0L ? Math.min(timeout, delay) : delay);
+            }
+        }
+
+        return selected;
+    }
+
+    static void attach(
+        SelectionKey key,
+        Consumer<SelectionKey> handler)
+    {
+        key.attach(handler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Consumer<SelectionKey> attachment(
+        SelectionKey selectedKey)
+    {
+        return (Consumer<SelectionKey>) selectedKey.attachment();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class IperfBufferPoolTest
+{
+    @Test
+    public void shouldSliceRequestedSizeFromSizeClass()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(0L);
+
+        final ByteBuffer buffer = pool.acquire(5000);
+
+        assertTrue(buffer.isDirect());
+        assertEquals(5000, buffer.capacity());
+        assertEquals(8192L, pool.allocatedBytes());
+        assertEquals(8192L, pool.borrowedBytes());
+        assertEquals(0L, pool.overflows());
+    }
+
+    @Test
+    public void shouldRoundSmallSizesUpToSmallestClass()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(0L);
+
+        pool.acquire(1);
+
+        assertEquals(4096L, pool.allocatedBytes());
+    }
+
+    @Test
+    public void shouldReuseReleasedBufferZeroed()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(0L);
+
+        final ByteBuffer first = pool.acquire(4096);
+        while (first.hasRemaining())
+        {
+            first.put((byte) 0x5a);
+        }
+        pool.release(first);
+        assertEquals(0L, pool.borrowedBytes());
+
+        final ByteBuffer second = pool.acquire(3000);
+
+        assertEquals(4096L, pool.allocatedBytes());
+        assertEquals(4096L, pool.borrowedBytes());
+        while (second.hasRemaining())
+        {
+            assertEquals(0, second.get());
+        }
+    }
+
+    @Test
+    public void shouldKeepSizeClassesApart()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(0L);
+
+        pool.release(pool.acquire(4096));
+        pool.acquire(8192);
+
+        assertEquals(4096L + 8192L, pool.allocatedBytes());
+        assertEquals(8192L, pool.borrowedBytes());
+    }
+
+    @Test
+    public void shouldOverflowToHeapBeyondCapacity()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(8192L);
+
+        final ByteBuffer direct = pool.acquire(8192);
+        final ByteBuffer heap = pool.acquire(100);
+
+        assertTrue(direct.isDirect());
+        assertFalse(heap.isDirect());
+        assertEquals(100, heap.capacity());
+        assertEquals(8192L, pool.allocatedBytes());
+        assertEquals(1L, pool.overflows());
+        assertEquals(100L, pool.overflowBytes());
+    }
+
+    @Test
+    public void shouldOverflowToHeapBeyondLargestClass()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(0L);
+
+        final ByteBuffer heap = pool.acquire((1 << 25) + 1);
+
+        assertFalse(heap.isDirect());
+        assertEquals(0L, pool.allocatedBytes());
+        assertEquals(1L, pool.overflows());
+    }
+
+    @Test
+    public void shouldTrackOverflowBytesUntilReleased()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(4096L);
+
+        pool.acquire(4096);
+        final ByteBuffer first = pool.acquire(1000);
+        final ByteBuffer second = pool.acquire(2000);
+        assertEquals(3000L, pool.overflowBytes());
+
+        pool.release(first);
+        pool.release(second);
+
+        assertEquals(2L, pool.overflows());
+        assertEquals(0L, pool.overflowBytes());
+        assertEquals(4096L, pool.borrowedBytes());
+    }
+
+    @Test
+    public void shouldCountAcquiresAndReleases()
+    {
+        final IperfBufferPool pool = new IperfBufferPool(0L);
+
+        final ByteBuffer buffer = pool.acquire(4096);
+        pool.release(buffer);
+        pool.release(null);
+
+        assertEquals(1L, pool.acquires());
+        assertEquals(1L, pool.releases());
+    }
+}
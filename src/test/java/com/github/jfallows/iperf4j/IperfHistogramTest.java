@@ -0,0 +1,180 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class IperfHistogramTest
+{
+    @Test
+    public void shouldReportZeroWhenEmpty()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+
+        assertEquals(0L, histogram.count());
+        assertEquals(0L, histogram.max());
+        assertEquals(0L, histogram.valueAtPercentile(50.0));
+    }
+
+    @Test
+    public void shouldRecordSmallValuesExactly()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        for (long value = 1L; value <= 100L; value++)
+        {
+            histogram.record(value);
+        }
+
+        assertEquals(100L, histogram.count());
+        assertEquals(50L, histogram.valueAtPercentile(50.0));
+        assertEquals(99L, histogram.valueAtPercentile(99.0));
+        assertEquals(100L, histogram.valueAtPercentile(100.0));
+        assertEquals(100L, histogram.max());
+    }
+
+    @Test
+    public void shouldShareBucketWithinPrecision()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        histogram.record(128L);
+        histogram.record(129L);
+
+        // above 128 each bucket spans two values, reported as the highest of them
+        assertEquals(129L, histogram.valueAtPercentile(50.0));
+    }
+
+    @Test
+    public void shouldStayWithinTwoPercent()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        for (long value = 1L; value <= 100_000L; value++)
+        {
+            histogram.record(value * 1000L);
+        }
+
+        assertWithin(50_000_000L, histogram.valueAtPercentile(50.0));
+        assertWithin(99_000_000L, histogram.valueAtPercentile(99.0));
+        assertWithin(99_900_000L, histogram.valueAtPercentile(99.9));
+        assertEquals(100_000_000L, histogram.max());
+    }
+
+    @Test
+    public void shouldNeverReportAboveMax()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        histogram.record(1_000_001L);
+
+        assertEquals(1_000_001L, histogram.valueAtPercentile(100.0));
+    }
+
+    @Test
+    public void shouldReportMonotonicPercentiles()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        long seed = 42L;
+        for (int i = 0; i < 10_000; i++)
+        {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            histogram.record((seed >>> 40) + 1L);
+        }
+
+        long last = 0L;
+        for (double percentile = 1.0; percentile <= 100.0; percentile += 0.5)
+        {
+            final long value = histogram.valueAtPercentile(percentile);
+            assertTrue(value >= last);
+            last = value;
+        }
+        assertTrue(last <= histogram.max());
+    }
+
+    @Test
+    public void shouldRecordNegativeAsZero()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        histogram.record(-5L);
+
+        assertEquals(1L, histogram.count());
+        assertEquals(0L, histogram.valueAtPercentile(50.0));
+    }
+
+    @Test
+    public void shouldRecordLargestValue()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(Long.MAX_VALUE, histogram.valueAtPercentile(50.0));
+    }
+
+    @Test
+    public void shouldAddCountsAndMax()
+    {
+        final IperfHistogram first = new IperfHistogram();
+        final IperfHistogram second = new IperfHistogram();
+        first.record(10L);
+        first.record(20L);
+        second.record(30L);
+
+        first.add(second);
+
+        assertEquals(3L, first.count());
+        assertEquals(30L, first.max());
+        assertEquals(20L, first.valueAtPercentile(50.0));
+    }
+
+    @Test
+    public void shouldResetToEmpty()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        histogram.record(10L);
+
+        histogram.reset();
+
+        assertEquals(0L, histogram.count());
+        assertEquals(0L, histogram.max());
+        assertEquals(0L, histogram.valueAtPercentile(99.0));
+    }
+
+    @Test
+    public void shouldWriteMicrosecondPercentiles()
+    {
+        final IperfHistogram histogram = new IperfHistogram();
+        for (int i = 0; i < 100; i++)
+        {
+            histogram.record(100L);
+        }
+
+        final JsonObject json = histogram.toJson("transactions", 2.0);
+
+        assertEquals(100L, json.get("transactions").getAsLong());
+        assertEquals(50.0, json.get("transactions_per_second").getAsDouble(), 0.0);
+        assertEquals(0.1, json.get("p50_us").getAsDouble(), 0.0);
+        assertEquals(0.1, json.get("max_us").getAsDouble(), 0.0);
+    }
+
+    private static void assertWithin(
+        long expected,
+        long actual)
+    {
+        assertEquals(expected, actual, expected * 0.02);
+    }
+}
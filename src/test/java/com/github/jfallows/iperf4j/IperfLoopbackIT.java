@@ -0,0 +1,265 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ClosedSelectorException;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class IperfLoopbackIT
+{
+    private static final int STREAMS = 4;
+
+    private IperfServer server;
+    private Thread serverThread;
+    private InetSocketAddress address;
+
+    @Before
+    public void startServer() throws IOException
+    {
+        // more streams than workers, so stream ids and directions cannot follow the order cookies arrive in
+        final IperfConfiguration config = new IperfConfiguration();
+        config.workers = 2;
+
+        startServer(config);
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.close();
+        serverThread.join(SECONDS.toMillis(5L));
+    }
+
+    private void startServer(
+        IperfConfiguration config) throws IOException
+    {
+        try (ServerSocket probe = new ServerSocket(0, 0, InetAddress.getLoopbackAddress()))
+        {
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), probe.getLocalPort());
+        }
+
+        server = new IperfServer(config);
+        server.bind(address);
+
+        serverThread = new Thread(() ->
+        {
+            try
+            {
+                while (server.isOpen())
+                {
+                    server.process();
+                }
+            }
+            catch (IOException | ClosedSelectorException ex)
+            {
+                // closed
+            }
+        }, "iperf4j-test-server");
+        serverThread.start();
+    }
+
+    @Test
+    public void shouldTransferForward() throws IOException
+    {
+        final IperfTest test = newTest(IperfMode.FORWARD);
+        final IperfClient client = runTest(test);
+
+        assertStreams(client, test, STREAMS, 0);
+    }
+
+    @Test
+    public void shouldTransferReverse() throws IOException
+    {
+        final IperfTest test = newTest(IperfMode.REVERSE);
+        final IperfClient client = runTest(test);
+
+        assertStreams(client, test, 0, STREAMS);
+    }
+
+    @Test
+    public void shouldTransferBidirectional() throws IOException
+    {
+        final IperfTest test = newTest(IperfMode.BIDIRECTIONAL);
+        final IperfClient client = runTest(test);
+
+        assertStreams(client, test, STREAMS, STREAMS);
+    }
+
+    @Test
+    public void shouldExchangeRequestResponse() throws IOException
+    {
+        final IperfTest test = newTest(IperfMode.REQUEST_RESPONSE);
+        test.length = 64;
+        final IperfClient client = runTest(test);
+
+        long transactions = 0L;
+        for (IperfTestStreamInfo stream : test.info.streams)
+        {
+            assertTrue(String.format("stream %d completed no transactions", stream.id), stream.latency.count() > 0L);
+            transactions += stream.latency.count();
+
+            // the server times each request from the one before, so sees the same transactions give or take the ends
+            final JsonObject peerLatency = client.peerStream(stream.id).getAsJsonObject("latency");
+            assertNotNull(String.format("stream %d has no server latency", stream.id), peerLatency);
+            assertPercentiles(peerLatency);
+            final long peerTransactions = peerLatency.get("transactions").getAsLong();
+            assertTrue(String.format("stream %d server saw %d of %d", stream.id, peerTransactions, stream.latency.count()),
+                    peerTransactions > stream.latency.count() / 2 && peerTransactions < stream.latency.count() * 2);
+        }
+
+        assertEquals(STREAMS, test.info.streams.size());
+        assertEquals(transactions, test.info.latency.count());
+        assertTrue(test.info.latency.valueAtPercentile(50.0) <= test.info.latency.valueAtPercentile(99.0));
+        assertTrue(test.info.latency.valueAtPercentile(99.0) <= test.info.latency.valueAtPercentile(99.9));
+        assertTrue(test.info.latency.valueAtPercentile(99.9) <= test.info.latency.max());
+        assertPercentiles(client.serverResults().getAsJsonObject("latency"));
+    }
+
+    @Test
+    public void shouldOpenConnectionPerTransaction() throws Exception
+    {
+        // a deep backlog drained in batches, and a second listener servicing the transactions it accepts
+        stopServer();
+        final IperfConfiguration config = new IperfConfiguration();
+        config.workers = 2;
+        config.backlog = 1024;
+        config.acceptors = 2;
+        startServer(config);
+
+        final IperfTest test = newTest(IperfMode.CONNECTION_RATE);
+        test.length = 64;
+        final IperfClient client = runTest(test);
+
+        final JsonObject peerConnections = client.serverResults().getAsJsonObject("connections");
+        assertNotNull("server reported no connections", peerConnections);
+        assertPercentiles(peerConnections);
+
+        // each connector has at most one transaction the server answered but the client stopped before reading
+        final long connections = test.info.connections.count();
+        final long peerCount = peerConnections.get("connections").getAsLong();
+        assertTrue(String.format("server counted %d of %d connections", peerCount, connections),
+                peerCount > connections / 2 && peerCount <= connections + STREAMS);
+
+        final IperfMetrics.ServerMXBean metrics = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName("com.github.jfallows.iperf4j:type=Server"), IperfMetrics.ServerMXBean.class);
+        assertTrue(String.format("server accepted %d for %d connections", metrics.getAccepts(), peerCount),
+                metrics.getAccepts() > peerCount);
+    }
+
+    private static IperfTest newTest(
+        IperfMode mode)
+    {
+        final IperfTest test = new IperfTest();
+        test.protocol = "tcp";
+        test.mode = mode;
+        test.streams = STREAMS;
+        test.duration = 1;
+        test.length = 128 * 1024;
+        return test;
+    }
+
+    private IperfClient runTest(
+        IperfTest test) throws IOException
+    {
+        final IperfConfiguration config = new IperfConfiguration();
+        config.workers = 2;
+
+        try (IperfClient client = new IperfClient(config, test))
+        {
+            client.connect(address);
+
+            while (!client.isDone())
+            {
+                client.process();
+            }
+
+            assertEquals(IperfState.IPERF_DONE, client.state());
+            return client;
+        }
+    }
+
+    private static void assertPercentiles(
+        JsonObject latency)
+    {
+        final double p50 = latency.get("p50_us").getAsDouble();
+        final double p99 = latency.get("p99_us").getAsDouble();
+        final double p999 = latency.get("p99_9_us").getAsDouble();
+        final double max = latency.get("max_us").getAsDouble();
+
+        assertTrue(String.format("p50 %.1f us", p50), p50 > 0.0);
+        assertTrue(String.format("p50 %.1f us above p99 %.1f us", p50, p99), p50 <= p99);
+        assertTrue(String.format("p99 %.1f us above p99.9 %.1f us", p99, p999), p99 <= p999);
+        assertTrue(String.format("p99.9 %.1f us above max %.1f us", p999, max), p999 <= max);
+    }
+
+    private static void assertStreams(
+        IperfClient client,
+        IperfTest test,
+        int senders,
+        int receivers)
+    {
+        int sent = 0;
+        int received = 0;
+
+        for (IperfTestStreamInfo stream : test.info.streams)
+        {
+            final JsonObject peer = client.peerStream(stream.id);
+            assertNotNull(String.format("stream %d has no server result", stream.id), peer);
+
+            // each client stream must face a server stream going the other way
+            final boolean peerSender = peer.get("sender").getAsInt() == 1;
+            assertEquals(String.format("stream %d direction", stream.id), !stream.sender, peerSender);
+
+            final long sentBytes = stream.sender ? stream.bytes : peer.get("bytes").getAsLong();
+            final long receivedBytes = stream.sender ? peer.get("bytes").getAsLong() : stream.bytes;
+            assertTrue(String.format("stream %d sent nothing", stream.id), sentBytes > 0L);
+
+            // the receiver may stop before draining what is still in flight, but no more than that
+            assertTrue(String.format("stream %d received %d of %d", stream.id, receivedBytes, sentBytes),
+                    receivedBytes <= sentBytes && receivedBytes > sentBytes / 2);
+
+            if (stream.sender)
+            {
+                sent++;
+            }
+            else
+            {
+                received++;
+            }
+        }
+
+        assertEquals(senders, sent);
+        assertEquals(receivers, received);
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static com.github.jfallows.iperf4j.IperfMode.BIDIRECTIONAL;
+import static com.github.jfallows.iperf4j.IperfMode.CONNECTION_RATE;
+import static com.github.jfallows.iperf4j.IperfMode.REVERSE;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+public class IperfResultsLogTest
+{
+    private static final long SEGMENT_SIZE = 4096L;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = Files.createTempDirectory("iperf4j-results");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory))
+        {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+            {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void shouldExportAppendedTest() throws IOException
+    {
+        try (IperfResultsLog log = new IperfResultsLog(directory, SEGMENT_SIZE))
+        {
+            final IperfTest test = newTest("udp", REVERSE);
+            log.append(test, test.startNanos + SECONDS.toNanos(2L));
+        }
+
+        final List<JsonObject> tests = export(directory);
+
+        assertEquals(1, tests.size());
+        final JsonObject test = tests.get(0);
+        assertEquals("udp", test.get("protocol").getAsString());
+        assertEquals("reverse", test.get("mode").getAsString());
+        assertEquals(2, test.get("parallel").getAsInt());
+        assertEquals(1460, test.get("length").getAsInt());
+        assertEquals(10, test.get("duration").getAsInt());
+        assertEquals(1, test.get("omit").getAsInt());
+        assertEquals(1_000_000L, test.get("bandwidth").getAsLong());
+        assertEquals(2.0, test.get("seconds").getAsDouble(), 0.0);
+        assertEquals(1.0, test.get("interval").getAsDouble(), 0.0);
+        assertEquals(12.5, test.get("cpu_util_total").getAsDouble(), 0.0);
+
+        final JsonArray streams = test.getAsJsonArray("streams");
+        assertEquals(2, streams.size());
+        final JsonObject stream = streams.get(0).getAsJsonObject();
+        assertEquals(1, stream.get("id").getAsInt());
+        assertTrue(stream.get("sender").getAsBoolean());
+        assertTrue(stream.get("datagram").getAsBoolean());
+        assertEquals(3000L, stream.get("bytes").getAsLong());
+        assertEquals(7L, stream.get("errors").getAsLong());
+        assertEquals(2.0, stream.get("jitter_ms").getAsDouble(), 1e-9);
+
+        final JsonArray intervals = stream.getAsJsonArray("intervals");
+        assertEquals(2, intervals.size());
+        final JsonObject interval = intervals.get(1).getAsJsonObject();
+        assertEquals(1.0, interval.get("start").getAsDouble(), 0.0);
+        assertEquals(2.0, interval.get("end").getAsDouble(), 0.0);
+        assertEquals(2000L, interval.get("bytes").getAsLong());
+        assertEquals(16000.0, interval.get("bits_per_second").getAsDouble(), 0.0);
+        assertEquals(5L, interval.get("errors").getAsLong());
+        assertFalse(interval.get("omitted").getAsBoolean());
+        assertTrue(intervals.get(0).getAsJsonObject().get("omitted").getAsBoolean());
+    }
+
+    @Test
+    public void shouldRollToNextSegmentWhenFull() throws IOException
+    {
+        try (IperfResultsLog log = new IperfResultsLog(directory, SEGMENT_SIZE))
+        {
+            for (int i = 0; i < 20; i++)
+            {
+                final IperfTest test = newTest("tcp", BIDIRECTIONAL);
+                log.append(test, test.startNanos);
+            }
+        }
+
+        assertTrue(IperfResultsLog.segments(directory).size() > 1);
+        assertEquals(20, export(directory).size());
+    }
+
+    @Test
+    public void shouldStartNewSegmentOnReopen() throws IOException
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            try (IperfResultsLog log = new IperfResultsLog(directory, SEGMENT_SIZE))
+            {
+                final IperfTest test = newTest("tcp", CONNECTION_RATE);
+                log.append(test, test.startNanos);
+            }
+        }
+
+        assertEquals(2, IperfResultsLog.segments(directory).size());
+        final List<JsonObject> tests = export(directory);
+        assertEquals(2, tests.size());
+        assertEquals("connection_rate", tests.get(1).get("mode").getAsString());
+    }
+
+    @Test
+    public void shouldWriteStableModeValues() throws IOException
+    {
+        try (IperfResultsLog log = new IperfResultsLog(directory, SEGMENT_SIZE))
+        {
+            final IperfTest test = newTest("tcp", CONNECTION_RATE);
+            log.append(test, test.startNanos);
+        }
+
+        // the mode follows the record type, time, duration and protocol in the first record
+        final int modeAt = IperfResultsLog.SEGMENT_HEADER_SIZE + Integer.BYTES + Byte.BYTES + Long.BYTES * 2 +
+                Byte.BYTES;
+        try (FileChannel channel = FileChannel.open(IperfResultsLog.segments(directory).get(0), READ))
+        {
+            final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            assertEquals(4, segment.get(modeAt));
+        }
+    }
+
+    @Test
+    public void shouldSkipSegmentsOfAnotherVersion() throws IOException
+    {
+        try (IperfResultsLog log = new IperfResultsLog(directory, SEGMENT_SIZE))
+        {
+            final IperfTest test = newTest("tcp", REVERSE);
+            log.append(test, test.startNanos);
+        }
+
+        try (FileChannel channel = FileChannel.open(IperfResultsLog.segments(directory).get(0), READ, WRITE))
+        {
+            final MappedByteBuffer segment = channel.map(READ_WRITE, 0, channel.size());
+            segment.putInt(Integer.BYTES, IperfResultsLog.VERSION + 1);
+            segment.force();
+        }
+
+        assertTrue(export(directory).isEmpty());
+    }
+
+    @Test
+    public void shouldExportCsvRows() throws IOException
+    {
+        try (IperfResultsLog log = new IperfResultsLog(directory, SEGMENT_SIZE))
+        {
+            final IperfTest test = newTest("udp", REVERSE);
+            log.append(test, test.startNanos + SECONDS.toNanos(2L));
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(bytes, true, "UTF-8"))
+        {
+            new IperfResultsExporter(directory).exportCsv(out);
+        }
+
+        final String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+
+        // header, then a total and two intervals for each of the two streams
+        assertEquals(1 + 2 * 3, lines.length);
+        assertTrue(lines[0].startsWith("time,protocol,mode,"));
+        assertTrue(lines[1].contains(",udp,reverse,2,1460,1,true,total,"));
+        assertTrue(lines[3].contains(",interval,1.0,2.0,2000,"));
+    }
+
+    private static List<JsonObject> export(
+        Path directory) throws IOException
+    {
+        final List<JsonObject> tests = new ArrayList<>();
+        new IperfResultsExporter(directory).forEach(tests::add);
+        return tests;
+    }
+
+    private static IperfTest newTest(
+        String protocol,
+        IperfMode mode)
+    {
+        final IperfTest test = new IperfTest();
+        test.startNanos = System.nanoTime();
+        test.protocol = protocol;
+        test.mode = mode;
+        test.streams = 2;
+        test.length = 1460;
+        test.duration = 10;
+        test.omit = 1;
+        test.rate = 1_000_000L;
+        test.intervalNanos = SECONDS.toNanos(1L);
+        test.info.cpuUtilTotal = 12.5;
+
+        for (int id = 1; id <= test.streams; id++)
+        {
+            final IperfTestStreamInfo stream = new IperfTestStreamInfo();
+            stream.id = id;
+            stream.sender = id == 1;
+            stream.bytes = 3000L;
+            stream.errors = 7L;
+            stream.jitter = 0.002;
+            stream.intervals = new IperfIntervals(4, "udp".equals(protocol));
+            stream.intervals.record(0L, SECONDS.toNanos(1L), 1000L, 1L, 2L, 0.001, 0L, 0L, 0L, true);
+            stream.intervals.record(SECONDS.toNanos(1L), SECONDS.toNanos(2L), 2000L, 2L, 5L, 0.002, 0L, 0L, 0L,
+                    false);
+            test.info.streams.add(stream);
+        }
+
+        return test;
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static com.github.jfallows.iperf4j.IperfTimerWheel.NO_DEADLINE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IperfTimerWheelTest
+{
+    private static final long TICK = 1000L;
+    private static final int TICKS = 8;
+
+    private IperfTimerWheel wheel;
+    private List<String> fired;
+
+    @Before
+    public void setUp()
+    {
+        wheel = new IperfTimerWheel(TICK, TICKS, 0L);
+        fired = new ArrayList<>();
+    }
+
+    @Test
+    public void shouldHaveNoDeadlineWhenEmpty()
+    {
+        assertEquals(NO_DEADLINE, wheel.nextDeadline());
+        assertEquals(0, wheel.expire(TICK * 100));
+    }
+
+    @Test
+    public void shouldExpireAtDeadline()
+    {
+        final IperfTimer timer = newTimer("a");
+        wheel.schedule(timer, 3 * TICK);
+
+        assertTrue(timer.isScheduled());
+        assertEquals(3 * TICK, wheel.nextDeadline());
+        assertEquals(0, wheel.expire(3 * TICK - 1));
+        assertEquals(1, wheel.expire(3 * TICK));
+        assertFalse(timer.isScheduled());
+        assertEquals(NO_DEADLINE, wheel.nextDeadline());
+        assertEquals(List.of("a"), fired);
+    }
+
+    @Test
+    public void shouldRoundDeadlineUpToTick()
+    {
+        wheel.schedule(newTimer("a"), 2 * TICK + 1);
+
+        assertEquals(3 * TICK, wheel.nextDeadline());
+        assertEquals(0, wheel.expire(2 * TICK + 1));
+        assertEquals(1, wheel.expire(3 * TICK));
+    }
+
+    @Test
+    public void shouldNotExpireCancelled()
+    {
+        final IperfTimer a = newTimer("a");
+        final IperfTimer b = newTimer("b");
+        wheel.schedule(a, 2 * TICK);
+        wheel.schedule(b, 5 * TICK);
+
+        wheel.cancel(a);
+
+        assertEquals(5 * TICK, wheel.nextDeadline());
+        assertEquals(1, wheel.expire(10 * TICK));
+        assertEquals(List.of("b"), fired);
+    }
+
+    @Test
+    public void shouldMoveDeadlineWhenRescheduled()
+    {
+        final IperfTimer a = newTimer("a");
+        wheel.schedule(a, 2 * TICK);
+        wheel.schedule(newTimer("b"), 4 * TICK);
+
+        wheel.schedule(a, 6 * TICK);
+
+        assertEquals(4 * TICK, wheel.nextDeadline());
+        assertEquals(1, wheel.expire(4 * TICK));
+        assertEquals(6 * TICK, wheel.nextDeadline());
+        assertEquals(1, wheel.expire(6 * TICK));
+        assertEquals(List.of("b", "a"), fired);
+    }
+
+    @Test
+    public void shouldWakeAtEndOfRevolutionForLaterTimers()
+    {
+        wheel.schedule(newTimer("later"), (TICKS + 5) * TICK);
+        wheel.schedule(newTimer("now"), 2 * TICK);
+        assertEquals(1, wheel.expire(2 * TICK));
+
+        // once found again by walking the wheel, a deadline past one revolution waits for the end of it
+        assertEquals((3 + TICKS) * TICK, wheel.nextDeadline());
+        assertEquals(0, wheel.expire((3 + TICKS) * TICK));
+        assertEquals((TICKS + 5) * TICK, wheel.nextDeadline());
+        assertEquals(1, wheel.expire((TICKS + 5) * TICK));
+        assertEquals(List.of("now", "later"), fired);
+    }
+
+    @Test
+    public void shouldKeepLaterRevolutionsInSharedBucket()
+    {
+        wheel.schedule(newTimer("later"), (TICKS + 2) * TICK);
+        wheel.schedule(newTimer("now"), 2 * TICK);
+
+        assertEquals(2 * TICK, wheel.nextDeadline());
+        assertEquals(1, wheel.expire(2 * TICK));
+        assertEquals(List.of("now"), fired);
+
+        assertEquals(1, wheel.expire((TICKS + 2) * TICK));
+        assertEquals(List.of("now", "later"), fired);
+    }
+
+    @Test
+    public void shouldExpireEverythingDueAfterLongGap()
+    {
+        // more than a revolution elapses between expiries, so every bucket is due
+        for (int i = 0; i < TICKS; i++)
+        {
+            wheel.schedule(newTimer(Integer.toString(i)), (i + 1) * TICK);
+        }
+
+        assertEquals(TICKS, wheel.expire(TICKS * TICK * 3));
+        assertEquals(NO_DEADLINE, wheel.nextDeadline());
+    }
+
+    @Test
+    public void shouldScheduleInPastForNextExpiry()
+    {
+        wheel.expire(5 * TICK);
+        wheel.schedule(newTimer("a"), TICK);
+
+        assertEquals(6 * TICK, wheel.nextDeadline());
+        assertEquals(1, wheel.expire(6 * TICK));
+    }
+
+    @Test
+    public void shouldLetActionCancelTimerStillExpiring()
+    {
+        final IperfTimer b = newTimer("b");
+        final IperfTimer a = new IperfTimer(() ->
+        {
+            fired.add("a");
+            wheel.cancel(b);
+        });
+        wheel.schedule(a, 2 * TICK);
+        wheel.schedule(b, 2 * TICK);
+
+        // expired in reverse order of collection, so whichever runs first may cancel the other
+        final int expired = wheel.expire(2 * TICK);
+
+        assertTrue(fired.contains("a"));
+        assertEquals(fired.size(), expired);
+    }
+
+    @Test
+    public void shouldLetActionReschedule()
+    {
+        final IperfTimer[] timer = new IperfTimer[1];
+        timer[0] = new IperfTimer(() ->
+        {
+            fired.add("tick");
+            if (fired.size() < 3)
+            {
+                wheel.schedule(timer[0], (fired.size() + 1) * TICK * 3);
+            }
+        });
+        wheel.schedule(timer[0], TICK * 3);
+
+        for (long now = 0L; now <= TICK * 30; now += TICK)
+        {
+            wheel.expire(now);
+        }
+
+        assertEquals(3, fired.size());
+        assertEquals(NO_DEADLINE, wheel.nextDeadline());
+    }
+
+    @Test
+    public void shouldTrackDeadlineAcrossRollover()
+    {
+        // periodic timer outliving several revolutions, as an interval timer does
+        final IperfTimer timer = new IperfTimer(() -> fired.add("tick"));
+        long deadline = 3 * TICK;
+        wheel.schedule(timer, deadline);
+
+        for (int i = 0; i < TICKS * 4; i++)
+        {
+            assertEquals(deadline, wheel.nextDeadline());
+            assertEquals(1, wheel.expire(deadline));
+            deadline += 3 * TICK;
+            wheel.schedule(timer, deadline);
+        }
+
+        assertEquals(TICKS * 4, fired.size());
+    }
+
+    private IperfTimer newTimer(
+        String name)
+    {
+        return new IperfTimer(() -> fired.add(name));
+    }
+}
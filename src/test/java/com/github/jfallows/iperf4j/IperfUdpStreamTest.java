@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IperfUdpStreamTest
+{
+    private static final int LENGTH = 64;
+
+    private IperfWorker worker;
+    private DatagramChannel sender;
+    private DatagramChannel receiver;
+    private IperfTestStreamInfo info;
+    private IperfUdpStream stream;
+    private long packets;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        worker = new IperfWorker();
+        receiver = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sender = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver.connect(sender.getLocalAddress());
+        sender.connect(receiver.getLocalAddress());
+        receiver.configureBlocking(false);
+
+        info = new IperfTestStreamInfo();
+        stream = new IperfUdpStream(worker, info, receiver, new IperfBufferPool(0L), LENGTH, false);
+        stream.budget = Long.MAX_VALUE;
+        stream.register();
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        stream.close();
+        sender.close();
+        worker.close();
+    }
+
+    @Test
+    public void shouldCountPacketsInOrder() throws IOException
+    {
+        send(1L, 0L);
+        send(2L, 0L);
+        send(3L, 0L);
+        receive();
+
+        assertEquals(3L, info.packets);
+        assertEquals(0L, info.errors);
+        assertEquals(0L, info.outOfOrder);
+        assertEquals(3L * LENGTH, info.bytes);
+    }
+
+    @Test
+    public void shouldCountLostPackets() throws IOException
+    {
+        send(1L, 0L);
+        send(2L, 0L);
+        send(5L, 0L);
+        send(6L, 0L);
+        receive();
+
+        assertEquals(6L, info.packets);
+        assertEquals(2L, info.errors);
+        assertEquals(0L, info.outOfOrder);
+    }
+
+    @Test
+    public void shouldCountLateArrivalOutOfOrderNotLost() throws IOException
+    {
+        send(1L, 0L);
+        send(3L, 0L);
+        send(2L, 0L);
+        send(4L, 0L);
+        receive();
+
+        assertEquals(4L, info.packets);
+        assertEquals(0L, info.errors);
+        assertEquals(1L, info.outOfOrder);
+    }
+
+    @Test
+    public void shouldEstimateJitterFromTransitTimes() throws IOException
+    {
+        // each packet claims to be sent 10 ms earlier than the last, so transit grows by 10 ms a packet
+        final int count = 32;
+        final long stepMicros = MILLISECONDS.toMicros(10L);
+        for (int i = 1; i <= count; i++)
+        {
+            send(i, i * stepMicros);
+        }
+        receive();
+
+        // RFC 1889 smoothing from the second packet on, so 1/16 of the remaining gap each time
+        final double expected = stepMicros * (1.0 - Math.pow(15.0 / 16.0, count - 1)) / SECONDS.toMicros(1L);
+        assertEquals(expected, info.jitter, expected * 0.05);
+        assertEquals(0L, info.errors);
+    }
+
+    @Test
+    public void shouldCountPacketsFromTheEndOfTheOmitWindow() throws IOException
+    {
+        send(1L, 0L);
+        send(2L, 0L);
+        receive();
+        stream.onOmit();
+        packets = 0L;
+
+        send(3L, 0L);
+        send(4L, 0L);
+        send(5L, 0L);
+        receive();
+
+        assertEquals(3L, info.packets);
+        assertEquals(3L * LENGTH, info.bytes);
+        assertEquals(5L * LENGTH, info.totalBytesAcquire());
+    }
+
+    private void send(
+        long pcount,
+        long backdateMicros) throws IOException
+    {
+        final long nowMicros = MILLISECONDS.toMicros(System.currentTimeMillis()) - backdateMicros;
+        final ByteBuffer packet = ByteBuffer.allocate(LENGTH);
+        packet.putInt(0, (int) MICROSECONDS.toSeconds(nowMicros));
+        packet.putInt(Integer.BYTES, (int) (nowMicros % SECONDS.toMicros(1L)));
+        packet.putInt(Integer.BYTES * 2, (int) pcount);
+        sender.write(packet);
+        packets++;
+    }
+
+    private void receive() throws IOException
+    {
+        // loopback datagrams are not lost, so wait for every one sent to be read
+        final long deadline = System.nanoTime() + SECONDS.toNanos(5L);
+        while (received() < packets && System.nanoTime() < deadline)
+        {
+            worker.process(10L);
+        }
+    }
+
+    private long received()
+    {
+        return info.bytes / LENGTH;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2016-2019 John Fallows
+ *
+ * John Fallows licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.github.jfallows.iperf4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IperfVerifierTest
+{
+    private static final int LENGTH = 1000;
+    private static final int BLOCKS = 4;
+    private static final long SEED = 0x1234_5678L;
+
+    private IperfTestStreamInfo info;
+    private IperfVerifier verifier;
+    private ByteBuffer payload;
+
+    @Before
+    public void setUp()
+    {
+        info = new IperfTestStreamInfo();
+        verifier = new IperfVerifier(info, LENGTH, SEED);
+        payload = ByteBuffer.allocate(LENGTH * BLOCKS);
+        IperfVerifier.fill(payload, LENGTH, SEED);
+    }
+
+    @Test
+    public void shouldAcceptIntactBlocks()
+    {
+        verifier.verify(payload);
+
+        assertTrue(info.verifying);
+        assertEquals(BLOCKS, info.verifiedBlocks);
+        assertEquals(0L, info.errors);
+    }
+
+    @Test
+    public void shouldAcceptBlocksSplitAcrossReads()
+    {
+        // reads rarely line up with blocks, so feed awkward slices spanning block boundaries
+        final int[] reads = { 1, 999, 1, 1500, 7, LENGTH * BLOCKS - 2508 };
+        int position = 0;
+        for (int read : reads)
+        {
+            payload.limit(position + read).position(position);
+            verifier.verify(payload);
+            position += read;
+        }
+
+        assertEquals(BLOCKS, info.verifiedBlocks);
+        assertEquals(0L, info.errors);
+    }
+
+    @Test
+    public void shouldDetectCorruptedBlock()
+    {
+        payload.put(LENGTH * 2 + 17, (byte) (payload.get(LENGTH * 2 + 17) ^ 0x01));
+
+        verifier.verify(payload);
+
+        assertEquals(BLOCKS, info.verifiedBlocks);
+        assertEquals(1L, info.errors);
+    }
+
+    @Test
+    public void shouldDetectZeroPayload()
+    {
+        verifier.verify(ByteBuffer.allocate(LENGTH * BLOCKS));
+
+        assertEquals(BLOCKS, info.errors);
+    }
+
+    @Test
+    public void shouldDetectDifferentSeed()
+    {
+        final ByteBuffer other = ByteBuffer.allocate(LENGTH);
+        IperfVerifier.fill(other, LENGTH, SEED + 1L);
+
+        verifier.verify(other);
+
+        assertEquals(1L, info.errors);
+    }
+
+    @Test
+    public void shouldNotCountPartialBlock()
+    {
+        payload.limit(LENGTH + LENGTH / 2);
+
+        verifier.verify(payload);
+
+        assertEquals(1L, info.verifiedBlocks);
+    }
+
+    @Test
+    public void shouldFillWholeBlocksOnly()
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(LENGTH * 2 + 10);
+        buffer.put(LENGTH * 2, (byte) 0x7f);
+
+        IperfVerifier.fill(buffer, LENGTH, SEED);
+
+        assertEquals(0, buffer.position());
+        assertEquals((byte) 0x7f, buffer.get(LENGTH * 2));
+        assertEquals(buffer.get(0), buffer.get(LENGTH));
+        assertTrue(buffer.getLong(0) != 0L);
+    }
+}